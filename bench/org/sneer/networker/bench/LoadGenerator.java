@@ -0,0 +1,263 @@
+package org.sneer.networker.bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.sneer.networker.NetId;
+import org.sneer.networker.NetworkerListener;
+import org.sneer.networker.dumb.DumbNetworker;
+import org.sneer.networker.dumb.DumbNetworkerRouter;
+import org.sneer.networker.util.Histogram;
+
+/**
+ * An end-to-end load generator for the DON (Dumb Overlay Network): it starts
+ *   a DumbNetworkerRouter and a bunch of DumbNetworker clients on loopback,
+ *   has every client send requests at a fixed rate to the next client (which
+ *   echoes them back), and reports throughput, loss and round-trip latency.
+ *
+ * Run it with "ant bench", passing options with -Dbench.args="...", e.g.
+ *   ant bench -Dbench.args="--clients=8 --size=512 --rate=20000"
+ *
+ * Options (all --name=value):
+ *   --clients=N       Number of DumbNetworkers (default 4).
+ *   --size=BYTES      Request payload size (default 64, at least 10).
+ *   --rate=N          Requests per second per client (default 1000, 0 = as
+ *                     fast as the client can send).
+ *   --duration=SECS   How long to measure (default 10).
+ *   --warmup=SECS     How long to run before measuring (default 2).
+ *   --drain=SECS      How long to wait for late echoes (default 1).
+ *   --workers=N       Worker threads of the router we start (default 1).
+ *   --router=HOST:PORT
+ *                     Use a router that is already running instead of
+ *                     starting one.
+ *
+ * The latency of a request is measured from the time it was supposed to be
+ *   sent, not from when the sender got around to sending it, so a client
+ *   that falls behind shows up as latency instead of being hidden (no
+ *   "coordinated omission"). Everything runs in one JVM, so both ends of the
+ *   measurement use the same System.nanoTime() clock.
+ */
+public class LoadGenerator {
+
+	// Payload layout: type, whether the request counts, intended send time.
+	static final byte REQUEST = 1;
+	static final byte ECHO = 2;
+	static final int TYPE = 0;
+	static final int MEASURED = 1;
+	static final int SENT_NANOS = 2;
+	static final int MIN_SIZE = 10;
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (! arg.startsWith("--") || eq < 0 || ! options.setOption(arg.substring(2, eq), arg.substring(eq + 1))) {
+				System.err.println("Unknown option: " + arg);
+				System.exit(1);
+			}
+		}
+		new LoadGenerator(options).run();
+	}
+
+	/**
+	 * What to run. main() fills this in from the command line.
+	 */
+	public static class Options {
+		public int clients = 4;
+		public int size = 64;
+		public int rate = 1000;
+		public int duration = 10;
+		public int warmup = 2;
+		public int drain = 1;
+		public int workers = 1;
+		public String router = null;
+
+		/**
+		 * Set one of the --name=value command-line options.
+		 * @param name The option name (without the dashes).
+		 * @param value The option value.
+		 * @return false if there's no such option.
+		 */
+		public boolean setOption(String name, String value) {
+			switch (name) {
+				case "clients": clients = Math.max(2, Integer.valueOf(value)); return true;
+				case "size": size = Math.max(MIN_SIZE, Integer.valueOf(value)); return true;
+				case "rate": rate = Math.max(0, Integer.valueOf(value)); return true;
+				case "duration": duration = Math.max(1, Integer.valueOf(value)); return true;
+				case "warmup": warmup = Math.max(0, Integer.valueOf(value)); return true;
+				case "drain": drain = Math.max(0, Integer.valueOf(value)); return true;
+				case "workers": workers = Math.max(1, Integer.valueOf(value)); return true;
+				case "router": router = value; return true;
+				default: return false;
+			}
+		}
+	}
+
+	final Options options;
+
+	// Round-trip times in nanoseconds of the measured requests.
+	final Histogram rtt = new Histogram();
+	final AtomicLong sent = new AtomicLong();
+	final AtomicLong echoed = new AtomicLong();
+
+	// Echoes of measured requests count until then.
+	volatile long stopCounting = Long.MAX_VALUE;
+
+	public LoadGenerator(Options options) {
+		this.options = options;
+	}
+
+	/**
+	 * Run the benchmark and print the report.
+	 * @throws Exception If the router or the clients can't be set up.
+	 */
+	public void run() throws Exception {
+		DumbNetworkerRouter router = null;
+		String routerHost = "127.0.0.1";
+		int routerPort;
+		if (options.router == null) {
+			DumbNetworkerRouter.Config config = new DumbNetworkerRouter.Config();
+			config.port = 0;
+			config.workers = options.workers;
+			config.statsInterval = 0;
+			router = new DumbNetworkerRouter(config);
+			routerPort = router.getPort();
+		} else {
+			int colon = options.router.lastIndexOf(':');
+			routerHost = options.router.substring(0, colon);
+			routerPort = Integer.valueOf(options.router.substring(colon + 1));
+		}
+
+		ArrayList<Client> clients = new ArrayList<>();
+		for (int i = 0; i < options.clients; ++i)
+			clients.add(new Client(routerHost, routerPort));
+		for (int i = 0; i < options.clients; ++i)
+			clients.get(i).peer = clients.get((i + 1) % options.clients).networker.getId();
+
+		// Give everyone a moment to ping the router; the warmup takes care
+		//   of the stragglers.
+		Thread.sleep(500);
+
+		System.out.println(String.format("Running %d clients, %d-byte requests at %s per client, %ds warmup + %ds...",
+				options.clients, options.size, options.rate == 0 ? "full speed" : options.rate + "/s",
+				options.warmup, options.duration));
+
+		long start = System.nanoTime();
+		long measureStart = start + TimeUnit.SECONDS.toNanos(options.warmup);
+		long end = measureStart + TimeUnit.SECONDS.toNanos(options.duration);
+		ArrayList<Thread> senders = new ArrayList<>();
+		for (int i = 0; i < options.clients; ++i) {
+			Thread t = new Thread(clients.get(i).sender(start, measureStart, end), "LoadGenerator-" + i);
+			t.start();
+			senders.add(t);
+		}
+		for (Thread t : senders)
+			t.join();
+		Thread.sleep(TimeUnit.SECONDS.toMillis(options.drain));
+		stopCounting = System.nanoTime();
+
+		for (Client c : clients)
+			c.networker.kill();
+
+		report(end - measureStart);
+		if (router != null) {
+			System.out.println("Router: " + router.getStatsLine());
+			router.close();
+		}
+	}
+
+	void report(long nanos) {
+		double secs = nanos / 1e9;
+		long s = sent.get();
+		long e = echoed.get();
+		long[] counts = rtt.getCounts();
+		System.out.println(String.format("Sent: %d requests (%.0f/s), Echoed: %d (%.0f/s, %.1f Mbit/s through the router), Loss: %.3f%%",
+				s, s / secs, e, e / secs, e * 2.0 * (options.size + 64) * 8 / secs / 1e6,
+				s == 0 ? 0.0 : 100.0 * (s - Math.min(s, e)) / s));
+		System.out.println(String.format("Round trip us: p50 %.1f p99 %.1f p99.9 %.1f max %.1f",
+				Histogram.percentile(counts, 50) / 1000.0, Histogram.percentile(counts, 99) / 1000.0,
+				Histogram.percentile(counts, 99.9) / 1000.0, Histogram.percentile(counts, 100) / 1000.0));
+	}
+
+	// One simulated DumbNetworker: it echoes requests from its predecessor
+	//   and sends requests to its successor.
+	class Client implements NetworkerListener {
+
+		final DumbNetworker networker;
+		NetId peer;
+
+		Client(String routerHost, int routerPort) {
+			networker = new DumbNetworker(NetId.newRandomId());
+			networker.setListener(this);
+			networker.setLoopback(false); // it's the router we're loading
+			networker.bind(routerHost, routerPort);
+		}
+
+		@Override
+		public void receive(NetId sender, byte[] data) {
+			if (data.length < MIN_SIZE)
+				return;
+			if (data[TYPE] == REQUEST) {
+				data[TYPE] = ECHO;
+				networker.send(sender, data);
+			} else if (data[TYPE] == ECHO && data[MEASURED] != 0) {
+				long now = System.nanoTime();
+				if (now < stopCounting) {
+					rtt.record(now - getLong(data, SENT_NANOS));
+					echoed.incrementAndGet();
+				}
+			}
+		}
+
+		@Override
+		public void killed() {
+		}
+
+		// Sends requests on schedule from start to end; only those scheduled
+		//   after measureStart count.
+		Runnable sender(final long start, final long measureStart, final long end) {
+			return new Runnable() {
+				@Override
+				public void run() {
+					long interval = options.rate == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / options.rate;
+					long intended = start;
+					while (true) {
+						long now = System.nanoTime();
+						if (interval == 0)
+							intended = now;
+						while (intended > now) {
+							LockSupport.parkNanos(intended - now);
+							now = System.nanoTime();
+						}
+						if (intended >= end)
+							break;
+						boolean measured = intended >= measureStart;
+						byte[] data = new byte[options.size];
+						data[TYPE] = REQUEST;
+						data[MEASURED] = (byte)(measured ? 1 : 0);
+						putLong(data, SENT_NANOS, intended);
+						networker.send(peer, data);
+						if (measured)
+							sent.incrementAndGet();
+						intended += interval;
+					}
+				}
+			};
+		}
+	}
+
+	static long getLong(byte[] b, int off) {
+		long v = 0;
+		for (int i = 0; i < 8; ++i)
+			v = (v << 8) | (b[off + i] & 0xff);
+		return v;
+	}
+
+	static void putLong(byte[] b, int off, long v) {
+		for (int i = 7; i >= 0; --i) {
+			b[off + i] = (byte)v;
+			v >>>= 8;
+		}
+	}
+}
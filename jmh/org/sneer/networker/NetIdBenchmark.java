@@ -0,0 +1,74 @@
+package org.sneer.networker;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * NetId's per-packet operations: equality, hashing, copying out the bytes
+ *   and using it as a HashMap key (which is what the router and the
+ *   messenger do with every packet).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetIdBenchmark {
+
+	NetId a;
+	NetId sameAsA;
+	NetId b;
+	HashMap<NetId, Integer> map;
+
+	@Setup
+	public void setup() {
+		a = NetId.newRandomId();
+		sameAsA = new NetId(a);
+		b = NetId.newRandomId();
+		map = new HashMap<>();
+		for (int i = 0; i < 1000; ++i)
+			map.put(NetId.newRandomId(), i);
+		map.put(a, -1);
+	}
+
+	@Benchmark
+	public boolean equalsSame() {
+		return a.equals(sameAsA);
+	}
+
+	@Benchmark
+	public boolean equalsDifferent() {
+		return a.equals(b);
+	}
+
+	@Benchmark
+	public int hashCodeOf() {
+		return a.hashCode();
+	}
+
+	@Benchmark
+	public byte[] getBytes() {
+		return a.getBytes();
+	}
+
+	@Benchmark
+	public Integer hashMapHit() {
+		return map.get(sameAsA);
+	}
+
+	@Benchmark
+	public Integer hashMapMiss() {
+		return map.get(b);
+	}
+}
@@ -0,0 +1,68 @@
+package org.sneer.networker.dumb;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.sneer.networker.NetId;
+
+/**
+ * Parsing the 64-byte packet header, the way DumbNetworkerDevice.run() does
+ *   it (building NetIds and checking that we're the receiver) and the way
+ *   the router's workers do it (RouterKeys loaded in place).
+ *
+ * These mirror the code in those run() loops, which can't be called on
+ *   their own; keep them in sync when the loops change.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderParsingBenchmark {
+
+	static final NetId PING = new NetId();
+
+	NetId self;
+	ByteBuffer packet;
+	RouterKey sender;
+	RouterKey receiver;
+
+	@Setup
+	public void setup() {
+		self = NetId.newRandomId();
+		packet = ByteBuffer.allocateDirect(64 + 100);
+		packet.put(NetId.newRandomId().getBytes());
+		packet.put(self.getBytes());
+		packet.put(new byte[100]);
+		packet.flip();
+		sender = new RouterKey();
+		receiver = new RouterKey();
+	}
+
+	@Benchmark
+	public void device(Blackhole bh) {
+		if (self.equalsAt(packet, 32)) {
+			if (! PING.equalsAt(packet, 0))
+				bh.consume(NetId.read(packet, 0));
+		}
+	}
+
+	@Benchmark
+	public void router(Blackhole bh) {
+		sender.load(packet, 0);
+		receiver.load(packet, 32);
+		bh.consume(sender.hash);
+		bh.consume(receiver.isZero());
+	}
+}
@@ -0,0 +1,117 @@
+package org.sneer.networker.dumb;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The router's lookups: the routing table (hit, miss and the refresh every
+ *   packet does for its sender), and the clustered two-table path where a
+ *   miss in the routing table falls through to the cluster directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingLookupBenchmark {
+
+	@Param({"1000", "100000"})
+	public int entries;
+
+	RoutingTable table;
+	RouterCluster cluster;
+	RouterKey[] known;
+	RouterKey[] remote;
+	RouterKey[] unknown;
+	InetSocketAddress[] addresses;
+	long now;
+	int next;
+
+	@Setup
+	public void setup() throws IOException {
+		Random random = new Random(42);
+		now = System.currentTimeMillis();
+		table = new RoutingTable(1, DumbNetworkerRouter.ENTRY_TTL);
+
+		// A one-router cluster owns every NetId, so every remote key is
+		//   looked up in its directory.
+		InetSocketAddress self = new InetSocketAddress("127.0.0.1", 65235);
+		cluster = new RouterCluster(new InetSocketAddress[] { self }, 65235, 1);
+		InetSocketAddress home = new InetSocketAddress("127.0.0.2", 65235);
+
+		known = new RouterKey[1024];
+		remote = new RouterKey[1024];
+		unknown = new RouterKey[1024];
+		addresses = new InetSocketAddress[1024];
+		for (int i = 0; i < entries; ++i) {
+			RouterKey key = randomKey(random);
+			InetSocketAddress address = new InetSocketAddress("10.0." + (i >> 8 & 255) + "." + (i & 255), 1024 + i % 60000);
+			table.refresh(key, address, now);
+			cluster.directory.refresh(randomKey(random), home, now);
+			if (i < known.length) {
+				known[i] = key;
+				addresses[i] = address;
+			}
+		}
+		for (int i = 0; i < known.length; ++i) {
+			if (known[i] == null) {
+				known[i] = known[i % entries];
+				addresses[i] = addresses[i % entries];
+			}
+			remote[i] = randomKey(random);
+			cluster.directory.refresh(remote[i], home, now);
+			unknown[i] = randomKey(random);
+		}
+	}
+
+	static RouterKey randomKey(Random random) {
+		RouterKey key = new RouterKey();
+		key.w0 = random.nextLong();
+		key.w1 = random.nextLong();
+		key.w2 = random.nextLong();
+		key.w3 = random.nextLong();
+		key.hash = RouterKey.hash(key.w0, key.w1, key.w2, key.w3);
+		return key;
+	}
+
+	int next() {
+		return next = (next + 1) & 1023;
+	}
+
+	@Benchmark
+	public InetSocketAddress lookupHit() {
+		return table.lookup(known[next()], now);
+	}
+
+	@Benchmark
+	public InetSocketAddress lookupMiss() {
+		return table.lookup(unknown[next()], now);
+	}
+
+	@Benchmark
+	public void refreshKnown() {
+		int i = next();
+		table.refresh(known[i], addresses[i], now);
+	}
+
+	@Benchmark
+	public InetSocketAddress clusterLookup() {
+		RouterKey key = remote[next()];
+		InetSocketAddress address = table.lookup(key, now);
+		return address != null ? address : cluster.nextHop(key, now);
+	}
+}
@@ -0,0 +1,72 @@
+package org.sneer.networker.messenger.dumb;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sneer.networker.NetId;
+
+/**
+ * DumbMessageId as the DumbMessenger uses it: hashed into the pending-ack
+ *   map on every ack and into the receipt sets on every received message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DumbMessageIdBenchmark {
+
+	DumbMessageId id;
+	DumbMessageId sameAsId;
+	DumbMessageId missing;
+	HashMap<DumbMessageId, Long> pendingAcks;
+	HashSet<DumbMessageId> receipts;
+
+	@Setup
+	public void setup() {
+		NetId peer = NetId.newRandomId();
+		id = new DumbMessageId(12345, peer);
+		sameAsId = new DumbMessageId(12345, new NetId(peer));
+		missing = new DumbMessageId(54321, peer);
+		pendingAcks = new HashMap<>();
+		receipts = new HashSet<>();
+		for (int i = 0; i < 1000; ++i) {
+			DumbMessageId other = new DumbMessageId(i, NetId.newRandomId());
+			pendingAcks.put(other, (long)i);
+			receipts.add(other);
+		}
+		pendingAcks.put(id, -1L);
+		receipts.add(id);
+	}
+
+	@Benchmark
+	public int hashCodeOf() {
+		return sameAsId.hashCode();
+	}
+
+	@Benchmark
+	public boolean equalsSame() {
+		return id.equals(sameAsId);
+	}
+
+	@Benchmark
+	public Long pendingAckHit() {
+		return pendingAcks.get(sameAsId);
+	}
+
+	@Benchmark
+	public boolean receiptMiss() {
+		return receipts.contains(missing);
+	}
+}
@@ -0,0 +1,129 @@
+package org.sneer.networker.messenger.dumb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sneer.networker.Device;
+import org.sneer.networker.NetId;
+import org.sneer.networker.Networker;
+import org.sneer.networker.NetworkerListener;
+import org.sneer.networker.messenger.MessengerListener;
+
+/**
+ * DumbMessenger.send(): filing a message in the send schedule. The cost
+ *   grows with the number of messages already scheduled (they pile up, since
+ *   nothing acks them here), so this runs batches of sends on a fresh
+ *   messenger and reports the time per batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10, batchSize = 1000)
+@Measurement(iterations = 20, batchSize = 1000)
+@Fork(1)
+public class DumbMessengerBenchmark {
+
+	DumbMessenger messenger;
+	Networker networker;
+	NetId receiver;
+	byte[] message;
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		networker = new NullNetworker();
+		messenger = new DumbMessenger(networker, new NullMessengerListener());
+		receiver = NetId.newRandomId();
+		message = new byte[100];
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		networker.kill();
+	}
+
+	@Benchmark
+	public Object send() {
+		return messenger.send(receiver, message);
+	}
+
+	// A Networker that goes nowhere.
+	static class NullNetworker implements Networker {
+
+		final NetId id = NetId.newRandomId();
+		volatile NetworkerListener listener;
+		volatile boolean dead;
+
+		@Override
+		public NetId getId() {
+			return new NetId(id);
+		}
+
+		@Override
+		public void setListener(NetworkerListener listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		public NetworkerListener getListener() {
+			return listener;
+		}
+
+		@Override
+		public ArrayList<Device> getDevices() {
+			return new ArrayList<>();
+		}
+
+		@Override
+		public void send(NetId receiver, byte[] data) {
+		}
+
+		@Override
+		public void send(NetId receiver, byte[] data, int offset, int length) {
+		}
+
+		@Override
+		public void send(NetId receiver, ByteBuffer data) {
+		}
+
+		@Override
+		public void kill() {
+			if (! dead) {
+				dead = true;
+				if (listener != null)
+					listener.killed();
+			}
+		}
+
+		@Override
+		public boolean isDead() {
+			return dead;
+		}
+	}
+
+	static class NullMessengerListener implements MessengerListener {
+
+		@Override
+		public void sendCompleted(Object request) {
+		}
+
+		@Override
+		public void sendFailed(Object request) {
+		}
+
+		@Override
+		public void receive(NetId sender, byte[] message) {
+		}
+	}
+}
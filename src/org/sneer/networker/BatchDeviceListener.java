@@ -0,0 +1,24 @@
+package org.sneer.networker;
+
+import java.nio.ByteBuffer;
+
+/*
+ * A DeviceListener that can take incoming datagrams in batches (see 
+ *   BatchNetworkerListener). Devices that know about it drain everything 
+ *   that is waiting on the network and call receiveBatch() once; the others
+ *   just keep calling receive().
+ */
+public interface BatchDeviceListener extends DeviceListener {
+
+	/**
+	 * Receive a batch of datagrams that just arrived from the overlay/network
+	 *   implemented by the associated Device.
+	 * The buffers are read-only views into the Device's receive buffers, 
+	 *   each with the datagram between its position and limit. They (and
+	 *   the arrays) are only good until this call returns.
+	 * @param senders senders[i] sent data[i].
+	 * @param data What was sent to us.
+	 * @param count How many datagrams there are (the arrays may be longer).
+	 */
+	public void receiveBatch(NetId[] senders, ByteBuffer[] data, int count);
+}
@@ -0,0 +1,28 @@
+package org.sneer.networker;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A NetworkerListener that can take incoming datagrams in batches: when 
+ *   lots of datagrams arrive at once, a Networker that knows about this 
+ *   interface delivers all of them in one call instead of one call (and one
+ *   byte[]) per datagram.
+ * 
+ * Networkers that don't know about batches just keep calling receive(), 
+ *   so implementors still have to implement that.
+ */
+public interface BatchNetworkerListener extends NetworkerListener {
+
+	/**
+	 * Receive a batch of unreliable, unordered, non-duplicate-protected 
+	 *   datagrams that just arrived from the devices.
+	 * The buffers are read-only views into the Networker's receive buffers,
+	 *   each with the datagram between its position and limit. They (and 
+	 *   the arrays) are only good until this call returns, so copy whatever
+	 *   you want to keep.
+	 * @param senders senders[i] sent data[i].
+	 * @param data What was sent to us.
+	 * @param count How many datagrams there are (the arrays may be longer).
+	 */
+	public void receiveBatch(NetId[] senders, ByteBuffer[] data, int count);
+}
@@ -1,5 +1,7 @@
 package org.sneer.networker;
 
+import java.nio.ByteBuffer;
+
 /*
  * A Networker Device is like a network interface card (NIC) to an overlay 
  *   (logical) network of some sort.
@@ -40,4 +42,21 @@ public interface Device {
 	 * @param data What should be sent to it.
 	 */
 	public void send(NetId receiver, byte[] data);
+	
+	/**
+	 * Same as send(NetId, byte[]), for part of an array.
+	 * @param receiver Networker that should get it.
+	 * @param data Where the datagram is.
+	 * @param offset Where in data the datagram starts.
+	 * @param length How many bytes it has.
+	 */
+	public void send(NetId receiver, byte[] data, int offset, int length);
+	
+	/**
+	 * Same as send(NetId, byte[]), for the bytes between a buffer's position
+	 *   and limit. The buffer's position and limit are left as they were.
+	 * @param receiver Networker that should get it.
+	 * @param data What should be sent to it.
+	 */
+	public void send(NetId receiver, ByteBuffer data);
 }
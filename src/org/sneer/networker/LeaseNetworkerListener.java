@@ -0,0 +1,27 @@
+package org.sneer.networker;
+
+import org.sneer.networker.util.BufferPool;
+
+/**
+ * A NetworkerListener that takes incoming datagrams in pooled buffers: 
+ *   instead of a new byte[] per datagram, a Networker that knows about this
+ *   interface hands over a Lease on a buffer from its BufferPool, which the
+ *   listener gives back when it's done with it. Once the pool has warmed up,
+ *   receiving doesn't allocate anything.
+ * 
+ * Networkers that don't know about leases just keep calling receive(), 
+ *   so implementors still have to implement that.
+ */
+public interface LeaseNetworkerListener extends NetworkerListener {
+
+	/**
+	 * Receive an unreliable, unordered, non-duplicate-protected datagram.
+	 * The listener owns the lease from here on: it can hold on to it past 
+	 *   this call (e.g. to process it in another thread), but must release()
+	 *   it exactly once when done. Use data.copy() first to keep the bytes
+	 *   around after releasing.
+	 * @param sender Who sent it.
+	 * @param data What was sent to us; data.data() is a read-only view.
+	 */
+	public void receive(NetId sender, BufferPool.Lease data);
+}
@@ -0,0 +1,25 @@
+package org.sneer.networker;
+
+/*
+ * A Device that knows (or guesses) how long a round trip to a given
+ *   Networker takes through it, and whether it can reach it at all.
+ *   Networkers with several Devices (e.g. CompositeNetworker) use this to
+ *   choose among them.
+ */
+public interface MeasuredDevice extends Device {
+
+	/**
+	 * Returned by getRttNanos() for a receiver this Device can't reach.
+	 */
+	public static final long UNREACHABLE = -1;
+
+	/**
+	 * How long a round trip to receiver takes through this Device, as far
+	 *   as it knows. This is called on every send() that isn't cached, so
+	 *   it should be cheap.
+	 * @param receiver A Networker's NetId.
+	 * @return The smoothed round-trip time in nanoseconds, 0 if unknown, or
+	 *   UNREACHABLE.
+	 */
+	public long getRttNanos(NetId receiver);
+}
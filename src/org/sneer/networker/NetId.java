@@ -1,7 +1,7 @@
 package org.sneer.networker;
 
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
-import java.util.Arrays;
 
 /*
  * A "NetId" (we can change this name) is an address in an abstract logical/overlay network.
@@ -31,38 +31,131 @@ import java.util.Arrays;
  */
 public class NetId {
 
+	/**
+	 * Size of a NetId in bytes.
+	 */
+	public static final int SIZE = 32;
+	
+	private static final SecureRandom random = new SecureRandom();
+
 	// A 256-bit overlay network ID. May be a random number OR an ECC public 
-	//   key of some sort.
-	private byte[] bytes;
+	//   key of some sort. Kept as four big-endian words (w0 is the first 8 
+	//   bytes) so that comparing two NetIds is four long compares, with the
+	//   hash computed once since NetIds are immutable.
+	private final long w0, w1, w2, w3;
+	private final int hash;
 	
 	// Call NetId.newRandomId() (static method) to get a new random NetId
 	public static NetId newRandomId() {
-		NetId netId = new NetId();
-		new SecureRandom().nextBytes(netId.bytes);
-		return netId;
+		return new NetId(random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong());
+	}
+	
+	/**
+	 * Read a NetId from a buffer. Doesn't change the buffer's position.
+	 * @param buf The buffer.
+	 * @param offset Absolute offset of the NetId's first byte.
+	 * @return The NetId.
+	 */
+	public static NetId read(ByteBuffer buf, int offset) {
+		return new NetId(buf.getLong(offset), buf.getLong(offset + 8),
+				buf.getLong(offset + 16), buf.getLong(offset + 24));
 	}
 	
 	// Default constructor returns a blank 256-bit netId
 	public NetId() {
-		bytes = new byte[32];
+		this(0, 0, 0, 0);
 	}
 	
-	// Copy constructor
+	// Copy constructor (NetIds are immutable, so you don't really need this)
 	public NetId(NetId source) {
-		bytes = Arrays.copyOf(source.bytes, source.bytes.length);
+		this(source.w0, source.w1, source.w2, source.w3);
+	}
+	
+	// Build from 32 raw bytes (we copy them; a shorter array is padded with
+	//   zeroes)
+	public NetId(byte[] source) {
+		this(getLong(source, 0), getLong(source, 8), getLong(source, 16), getLong(source, 24));
+	}
+	
+	// Build from the four big-endian words
+	public NetId(long w0, long w1, long w2, long w3) {
+		this.w0 = w0;
+		this.w1 = w1;
+		this.w2 = w2;
+		this.w3 = w3;
+		this.hash = hash(w0, w1, w2, w3);
 	}
 
 	// Returns a copy (you can't use this to change the ID)
 	public byte[] getBytes() { 
-		return bytes.clone();
+		byte[] bytes = new byte[SIZE];
+		putLong(bytes, 0, w0);
+		putLong(bytes, 8, w1);
+		putLong(bytes, 16, w2);
+		putLong(bytes, 24, w3);
+		return bytes;
+	}
+	
+	/**
+	 * Write this NetId into a buffer. Doesn't change the buffer's position.
+	 * @param buf The buffer.
+	 * @param offset Absolute offset where the first byte goes.
+	 */
+	public void write(ByteBuffer buf, int offset) {
+		buf.putLong(offset, w0);
+		buf.putLong(offset + 8, w1);
+		buf.putLong(offset + 16, w2);
+		buf.putLong(offset + 24, w3);
+	}
+	
+	/**
+	 * Write this NetId at a buffer's position, advancing it by SIZE.
+	 * @param buf The buffer.
+	 */
+	public void put(ByteBuffer buf) {
+		buf.putLong(w0);
+		buf.putLong(w1);
+		buf.putLong(w2);
+		buf.putLong(w3);
+	}
+	
+	/**
+	 * Compare this NetId with the one in a buffer, without building it.
+	 * @param buf The buffer.
+	 * @param offset Absolute offset of the other NetId's first byte.
+	 * @return true if they're the same NetId.
+	 */
+	public boolean equalsAt(ByteBuffer buf, int offset) {
+		return buf.getLong(offset) == w0 && buf.getLong(offset + 8) == w1
+				&& buf.getLong(offset + 16) == w2 && buf.getLong(offset + 24) == w3;
+	}
+	
+	/**
+	 * @return true for the all-zeroes NetId.
+	 */
+	public boolean isZero() {
+		return (w0 | w1 | w2 | w3) == 0;
+	}
+	
+	/**
+	 * The hash of a NetId given as four big-endian words. Same as hashCode(),
+	 *   for code that has the words but not a NetId.
+	 * @param w0 First 8 bytes.
+	 * @param w1 Next 8 bytes.
+	 * @param w2 Next 8 bytes.
+	 * @param w3 Last 8 bytes.
+	 * @return The hash.
+	 */
+	public static int hash(long w0, long w1, long w2, long w3) {
+		// NetIds are random numbers or public keys, so just folding the 
+		//   words together is as good as anything fancier.
+		long h = w0 ^ (w1 * 31) ^ (w2 * 961) ^ (w3 * 29791);
+		return (int)(h ^ (h >>> 32));
 	}
 	
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + Arrays.hashCode(bytes);
-		return result;
+		return hash;
 	}
 
 	@Override
@@ -74,8 +167,22 @@ public class NetId {
 		if (getClass() != obj.getClass())
 			return false;
 		NetId other = (NetId) obj;
-		if (!Arrays.equals(bytes, other.bytes))
-			return false;
-		return true;
+		return hash == other.hash && w0 == other.w0 && w1 == other.w1 
+				&& w2 == other.w2 && w3 == other.w3;
+	}
+	
+	// Big-endian long at b[off..off+7], with missing bytes as zeroes.
+	private static long getLong(byte[] b, int off) {
+		long v = 0;
+		for (int i = 0; i < 8; ++i)
+			v = (v << 8) | (off + i < b.length ? b[off + i] & 0xff : 0);
+		return v;
+	}
+
+	private static void putLong(byte[] b, int off, long v) {
+		for (int i = 7; i >= 0; --i) {
+			b[off + i] = (byte)v;
+			v >>>= 8;
+		}
 	}
 }
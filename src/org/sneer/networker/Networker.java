@@ -1,5 +1,6 @@
 package org.sneer.networker;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 /*
@@ -23,8 +24,8 @@ public interface Networker {
 	
 	/**
 	 * The immutable NetId of this Networker. All Devices are using it.
-	 * @return Implementor should return a copy of the Networker's current 
-	 *   NetId that the caller can freely screw with to no effect.
+	 * @return The Networker's NetId. NetIds are immutable, so implementors
+	 *   can just return the one they have.
 	 */
 	public NetId getId();
 	
@@ -68,6 +69,26 @@ public interface Networker {
 	 */
 	public void send(NetId receiver, byte[] data);
 	
+	/**
+	 * Sends part of an array as an unreliable, unordered, 
+	 *   non-duplicate-protected datagram, without copying it first.
+	 * @param receiver Networker that should get it.
+	 * @param data Where the datagram is.
+	 * @param offset Where in data the datagram starts.
+	 * @param length How many bytes it has.
+	 */
+	public void send(NetId receiver, byte[] data, int offset, int length);
+	
+	/**
+	 * Sends the bytes between a buffer's position and limit as an 
+	 *   unreliable, unordered, non-duplicate-protected datagram, without 
+	 *   copying them first (a direct buffer can go all the way to the socket
+	 *   untouched). The buffer's position and limit are left as they were.
+	 * @param receiver Networker that should get it.
+	 * @param data What should be sent to it.
+	 */
+	public void send(NetId receiver, ByteBuffer data);
+	
 	/**
 	 * Kill this Networker. A dead Networker does nothing forevermore. 
 	 * All underlying Devices, sockets, threads, etc. have to be wiped out
@@ -79,9 +100,10 @@ public interface Networker {
 	
 	/**
 	 * Check if kill() has been already invoked.
-	 * !! IMPORTANT !! Implementation should be marked "synchronized" so 
-	 *   multiple threads (e.g. application, network thread...) can poll this
-	 *   concurrently.
+	 * !! IMPORTANT !! Multiple threads (e.g. application, network thread...)
+	 *   poll this concurrently, and often, so implementations should make it
+	 *   thread-safe without taking a lock: a volatile or atomic flag that 
+	 *   kill() sets before calling NetworkerListener.killed() will do.
 	 * @return true if this Networker is dead.
 	 */
 	public boolean isDead();
@@ -0,0 +1,430 @@
+package org.sneer.networker.composite;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.sneer.networker.BatchDeviceListener;
+import org.sneer.networker.BatchNetworkerListener;
+import org.sneer.networker.Device;
+import org.sneer.networker.MeasuredDevice;
+import org.sneer.networker.NetId;
+import org.sneer.networker.Networker;
+import org.sneer.networker.NetworkerListener;
+
+/**
+ * A Networker that is really a bag of Devices, as the Networker interface
+ *   has it: it sends each datagram through whichever of its Devices its
+ *   Policy picks for the receiver, and passes on whatever comes in through
+ *   any of them.
+ *
+ * The Devices have to be made with this as their Networker and listener,
+ *   e.g. new LoopbackDevice(composite, composite). Any other Networker can
+ *   be used as a Device through a NetworkerDevice:
+ *
+ *   CompositeNetworker n = new CompositeNetworker(id, Policy.LOWEST_RTT);
+ *   DumbNetworker a = new DumbNetworker(id);
+ *   a.bind("router-a.example.com");
+ *   n.addDevice(new NetworkerDevice(n, a));
+ *   ...
+ *
+ * What a Device can do for a receiver comes from MeasuredDevice (Devices
+ *   that aren't one can reach anybody, at an unknown RTT) and from the RTTs
+ *   the application measures and reports with reportRtt(), which win. The
+ *   choice for a receiver is cached for ROUTE_TTL, so send() usually costs
+ *   one map lookup on top of the Device's own send().
+ */
+public class CompositeNetworker implements Networker, BatchDeviceListener {
+
+	/**
+	 * How to choose the Devices for a receiver.
+	 */
+	public enum Policy {
+		/** The Device with the lowest RTT to it (unknown RTTs come last). */
+		LOWEST_RTT,
+		/** All the Devices that can reach it, at once. */
+		REDUNDANT,
+		/** The Devices that can reach it, in turns, as often as their
+		 *  weights say. */
+		WEIGHTED_ROUND_ROBIN
+	}
+
+	// How long the choice for a receiver stands, in milliseconds, and the
+	//   most receivers we remember choices for (past that, we start over).
+	static final long ROUTE_TTL = 1000;
+	static final int MAX_ROUTES = 64 * 1024;
+
+	// The largest weight a Device can have.
+	public static final int MAX_WEIGHT = 100;
+
+	// A Device and its weight.
+	static final class Member {
+
+		final Device device;
+		final int weight;
+
+		Member(Device device, int weight) {
+			this.device = device;
+			this.weight = weight;
+		}
+	}
+
+	// The choice for one receiver: the Device to use (LOWEST_RTT), all of
+	//   them (REDUNDANT), or the rotation to go through (one entry per turn,
+	//   WEIGHTED_ROUND_ROBIN).
+	static final class Route {
+
+		final Device[] devices;
+		final long expires;
+		int next; // races only skew the rotation a little
+
+		Route(Device[] devices, long expires) {
+			this.devices = devices;
+			this.expires = expires;
+		}
+	}
+
+	// An RTT reported for a receiver through a Device.
+	static final class RttKey {
+
+		final NetId receiver;
+		final Device device;
+
+		RttKey(NetId receiver, Device device) {
+			this.receiver = receiver;
+			this.device = device;
+		}
+
+		@Override
+		public int hashCode() {
+			return receiver.hashCode() * 31 + System.identityHashCode(device);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (! (o instanceof RttKey))
+				return false;
+			RttKey k = (RttKey)o;
+			return device == k.device && receiver.equals(k.receiver);
+		}
+	}
+
+	final NetId netId;
+	final Policy policy;
+	volatile NetworkerListener listener;
+	final AtomicBoolean dead = new AtomicBoolean();
+
+	final CopyOnWriteArrayList<Member> members = new CopyOnWriteArrayList<>();
+	final ConcurrentHashMap<NetId, Route> routes = new ConcurrentHashMap<>();
+	final ConcurrentHashMap<RttKey, Long> reported = new ConcurrentHashMap<>();
+
+	/**
+	 * @param netId Our NetId, which all the Devices use.
+	 * @param policy How to choose among the Devices.
+	 */
+	public CompositeNetworker(NetId netId, Policy policy) {
+		this.netId = netId;
+		this.policy = policy;
+	}
+
+	/**
+	 * Add a Device, with weight 1.
+	 * @param device A Device whose Networker is this.
+	 */
+	public void addDevice(Device device) {
+		addDevice(device, 1);
+	}
+
+	/**
+	 * Add a Device.
+	 * @param device A Device whose Networker is this.
+	 * @param weight How many turns it gets for every turn of a Device of
+	 *   weight 1 (WEIGHTED_ROUND_ROBIN only), from 1 to MAX_WEIGHT.
+	 */
+	public void addDevice(Device device, int weight) {
+		if (device.getNetworker() != this)
+			throw new IllegalArgumentException("Device of another Networker");
+		if (weight < 1 || weight > MAX_WEIGHT)
+			throw new IllegalArgumentException("Weight out of range: " + weight);
+		members.add(new Member(device, weight));
+		routes.clear(); // choose again, with this one
+	}
+
+	/**
+	 * Stop using a Device (which is left as it is).
+	 * @param device One of ours.
+	 * @return false if it wasn't.
+	 */
+	public boolean removeDevice(Device device) {
+		for (Member member : members) {
+			if (member.device == device) {
+				members.remove(member);
+				forget(device);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Drop what we know of a Device's RTTs (the ones reported for it too),
+	 *   and choose again for everybody: it's no longer what it was (e.g.
+	 *   it's gone, or its Networker was killed).
+	 * @param device One of ours, or one that was.
+	 */
+	public void forget(Device device) {
+		Iterator<RttKey> it = reported.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().device == device)
+				it.remove();
+		}
+		routes.clear();
+	}
+
+	/**
+	 * Tell us how long a round trip to receiver took through device, as
+	 *   measured by the application (e.g. from request to reply). This
+	 *   takes precedence over what the Device itself says, and the choice
+	 *   for receiver is made again on the next send().
+	 * @param receiver Who was on the other end.
+	 * @param device Which of our Devices it went through.
+	 * @param rttNanos How long it took, in nanoseconds.
+	 */
+	public void reportRtt(NetId receiver, Device device, long rttNanos) {
+		if (rttNanos <= 0)
+			return;
+		if (reported.size() >= MAX_ROUTES)
+			reported.clear();
+		RttKey key = new RttKey(receiver, device);
+		Long old = reported.get(key);
+		// The usual 1/8 exponentially weighted moving average.
+		reported.put(key, old == null ? rttNanos : old + (rttNanos - old) / 8);
+		routes.remove(receiver);
+	}
+
+	/**
+	 * @param receiver A NetId.
+	 * @return The Devices we'd send to receiver through right now, in the
+	 *   order we'd use them.
+	 */
+	public ArrayList<Device> getRoute(NetId receiver) {
+		ArrayList<Device> ret = new ArrayList<>();
+		for (Device device : route(receiver).devices)
+			ret.add(device);
+		return ret;
+	}
+
+	/*
+	 * Networker
+	 */
+
+	@Override
+	public NetId getId() {
+		return netId;
+	}
+
+	@Override
+	public void setListener(NetworkerListener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public NetworkerListener getListener() {
+		return listener;
+	}
+
+	// A copy, so go ahead and screw with it.
+	@Override
+	public ArrayList<Device> getDevices() {
+		ArrayList<Device> ret = new ArrayList<>();
+		for (Member member : members)
+			ret.add(member.device);
+		return ret;
+	}
+
+	@Override
+	public void send(NetId receiver, byte[] data) {
+		send(receiver, data, 0, data.length);
+	}
+
+	@Override
+	public void send(NetId receiver, byte[] data, int offset, int length) {
+		if (dead.get())
+			return;
+		Route route = route(receiver);
+		Device[] devices = route.devices;
+		if (devices.length == 0)
+			return; // nobody can reach it
+		if (policy == Policy.REDUNDANT) {
+			for (Device device : devices)
+				device.send(receiver, data, offset, length);
+		} else {
+			pick(route).send(receiver, data, offset, length);
+		}
+	}
+
+	@Override
+	public void send(NetId receiver, ByteBuffer data) {
+		if (dead.get())
+			return;
+		Route route = route(receiver);
+		Device[] devices = route.devices;
+		if (devices.length == 0)
+			return;
+		if (policy == Policy.REDUNDANT) {
+			for (Device device : devices)
+				device.send(receiver, data); // which leaves data as it was
+		} else {
+			pick(route).send(receiver, data);
+		}
+	}
+
+	// Closes the Devices that can be closed (e.g. LoopbackDevices, and the
+	//   Networkers of NetworkerDevices, which are killed).
+	@Override
+	public void kill() {
+		if (! dead.compareAndSet(false, true))
+			return;
+		for (Member member : members) {
+			if (member.device instanceof Closeable) {
+				try {
+					((Closeable)member.device).close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+		members.clear();
+		routes.clear();
+		NetworkerListener l = listener;
+		if (l != null)
+			l.killed(); // isDead() is already true by now
+	}
+
+	@Override
+	public boolean isDead() {
+		return dead.get();
+	}
+
+	/*
+	 * DeviceListener
+	 */
+
+	@Override
+	public void receive(NetId sender, byte[] data) {
+		NetworkerListener l = listener;
+		if (l != null && ! dead.get())
+			l.receive(sender, data);
+	}
+
+	@Override
+	public void receiveBatch(NetId[] senders, ByteBuffer[] data, int count) {
+		NetworkerListener l = listener;
+		if (l == null || dead.get())
+			return;
+		if (l instanceof BatchNetworkerListener) {
+			((BatchNetworkerListener)l).receiveBatch(senders, data, count);
+		} else {
+			for (int i = 0; i < count; ++i) {
+				byte[] bytes = new byte[data[i].remaining()];
+				data[i].get(bytes);
+				l.receive(senders[i], bytes);
+			}
+		}
+	}
+
+	/*
+	 * Choosing
+	 */
+
+	Route route(NetId receiver) {
+		Route route = routes.get(receiver);
+		long now = System.currentTimeMillis();
+		if (route == null || now >= route.expires) {
+			route = new Route(choose(receiver), now + ROUTE_TTL);
+			if (routes.size() >= MAX_ROUTES)
+				routes.clear();
+			routes.put(receiver, route);
+		}
+		return route;
+	}
+
+	Device pick(Route route) {
+		Device[] devices = route.devices;
+		if (devices.length == 1)
+			return devices[0];
+		int turn = route.next++;
+		return devices[(turn & 0x7fffffff) % devices.length];
+	}
+
+	// Which Devices to use for receiver, according to the policy.
+	Device[] choose(NetId receiver) {
+		ArrayList<Member> reach = new ArrayList<>();
+		long bestRank = Long.MAX_VALUE;
+		Member best = null;
+		for (Member member : members) {
+			long rtt = rttOf(member.device, receiver);
+			if (rtt == MeasuredDevice.UNREACHABLE)
+				continue;
+			reach.add(member);
+			long rank = rtt > 0 ? rtt : Long.MAX_VALUE - 1; // unknown: last
+			if (rank < bestRank) {
+				bestRank = rank;
+				best = member;
+			}
+		}
+		if (reach.isEmpty())
+			return new Device[0];
+
+		switch (policy) {
+		case LOWEST_RTT:
+			return new Device[] { best.device };
+		case REDUNDANT: {
+			Device[] ret = new Device[reach.size()];
+			for (int i = 0; i < ret.length; ++i)
+				ret[i] = reach.get(i).device;
+			return ret;
+		}
+		default:
+			return rotation(reach);
+		}
+	}
+
+	// One entry per turn, spread out (smooth weighted round-robin: each
+	//   turn goes to whoever is most behind on its share).
+	static Device[] rotation(ArrayList<Member> reach) {
+		int total = 0;
+		for (Member member : reach)
+			total += member.weight;
+		Device[] ret = new Device[total];
+		int[] current = new int[reach.size()];
+		for (int turn = 0; turn < total; ++turn) {
+			int pick = 0;
+			for (int i = 0; i < current.length; ++i) {
+				current[i] += reach.get(i).weight;
+				if (current[i] > current[pick])
+					pick = i;
+			}
+			current[pick] -= total;
+			ret[turn] = reach.get(pick).device;
+		}
+		return ret;
+	}
+
+	// What the application reported wins, unless the Device says it can't
+	//   reach receiver (any more): that one is only as good as it was.
+	long rttOf(Device device, NetId receiver) {
+		long rtt = device instanceof MeasuredDevice ? ((MeasuredDevice)device).getRttNanos(receiver) : 0;
+		if (rtt == MeasuredDevice.UNREACHABLE)
+			return rtt;
+		if (! reported.isEmpty()) {
+			Long r = reported.get(new RttKey(receiver, device));
+			if (r != null)
+				return r;
+		}
+		return rtt; // 0 is unknown, but worth a try
+	}
+}
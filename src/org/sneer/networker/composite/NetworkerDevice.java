@@ -0,0 +1,112 @@
+package org.sneer.networker.composite;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import org.sneer.networker.BatchNetworkerListener;
+import org.sneer.networker.Device;
+import org.sneer.networker.DeviceListener;
+import org.sneer.networker.MeasuredDevice;
+import org.sneer.networker.NetId;
+import org.sneer.networker.Networker;
+
+/**
+ * Any Networker (a DumbNetworker bound to some router, say) as a Device of
+ *   a CompositeNetworker with the same NetId: sends go to the Networker,
+ *   and what it receives goes to the CompositeNetworker (this becomes its
+ *   listener). Its RTT to a receiver is the best its own MeasuredDevices
+ *   know of.
+ *
+ * Closing this kills the Networker.
+ */
+public class NetworkerDevice implements MeasuredDevice, BatchNetworkerListener, Closeable {
+
+	final CompositeNetworker parent;
+	final Networker child;
+
+	/**
+	 * @param parent The CompositeNetworker to be a Device of.
+	 * @param child The Networker to send through, with the same NetId.
+	 */
+	public NetworkerDevice(CompositeNetworker parent, Networker child) {
+		if (! child.getId().equals(parent.getId()))
+			throw new IllegalArgumentException("Networker of another NetId");
+		this.parent = parent;
+		this.child = child;
+		child.setListener(this);
+	}
+
+	/**
+	 * @return The Networker we send through.
+	 */
+	public Networker getChild() {
+		return child;
+	}
+
+	@Override
+	public Networker getNetworker() {
+		return parent;
+	}
+
+	@Override
+	public DeviceListener getListener() {
+		return parent;
+	}
+
+	@Override
+	public void send(NetId receiver, byte[] data) {
+		child.send(receiver, data);
+	}
+
+	@Override
+	public void send(NetId receiver, byte[] data, int offset, int length) {
+		child.send(receiver, data, offset, length);
+	}
+
+	@Override
+	public void send(NetId receiver, ByteBuffer data) {
+		child.send(receiver, data);
+	}
+
+	@Override
+	public long getRttNanos(NetId receiver) {
+		if (child.isDead())
+			return UNREACHABLE;
+		// The best known RTT of the Devices that reach it (Devices that 
+		//   don't say are a maybe, at an unknown RTT).
+		long best = UNREACHABLE;
+		for (Device device : child.getDevices()) {
+			long rtt = device instanceof MeasuredDevice ? ((MeasuredDevice)device).getRttNanos(receiver) : 0;
+			if (rtt == UNREACHABLE)
+				continue;
+			if (best == UNREACHABLE || best == 0 || (rtt > 0 && rtt < best))
+				best = rtt;
+		}
+		return best;
+	}
+
+	@Override
+	public void close() {
+		child.kill();
+	}
+
+	/*
+	 * NetworkerListener, for the child
+	 */
+
+	@Override
+	public void receive(NetId sender, byte[] data) {
+		parent.receive(sender, data);
+	}
+
+	@Override
+	public void receiveBatch(NetId[] senders, ByteBuffer[] data, int count) {
+		parent.receiveBatch(senders, data, count);
+	}
+
+	@Override
+	public void killed() {
+		// Somebody killed the child: it's UNREACHABLE from now on (see 
+		//   getRttNanos()), and what was reported for it no longer counts.
+		parent.forget(this);
+	}
+}
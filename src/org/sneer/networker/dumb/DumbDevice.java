@@ -0,0 +1,45 @@
+package org.sneer.networker.dumb;
+
+import org.sneer.networker.Device;
+
+/**
+ * What a DumbNetworker needs from its Device besides sending: either a 
+ *   DumbNetworkerDevice (a socket and a thread of its own) or its share of
+ *   a DumbNetworkerHub (one socket and thread for many DumbNetworkers).
+ * 
+ * Internal helper for this package.
+ */
+interface DumbDevice extends Device {
+	
+	/**
+	 * Start trying to work with the given central router.
+	 * @param serverAddr IP address where the central router is supposed to be.
+	 * @param serverPort UDP port where the central router is supposed to be.
+	 * @return false if some lame local error occurred.
+	 */
+	public boolean connect(String serverAddr, int serverPort);
+	
+	/**
+	 * @return true if we heard from the router recently.
+	 */
+	public boolean isConnected();
+	
+	/**
+	 * Wait until the router has us.
+	 * @param timeoutMillis How long to wait at most.
+	 * @return true if isConnected(), false if the time ran out.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public boolean awaitConnected(long timeoutMillis) throws InterruptedException;
+	
+	/**
+	 * Run something once the router has us (right away if it does).
+	 * @param callback What to run, once.
+	 */
+	public void whenConnected(Runnable callback);
+	
+	/**
+	 * Stop working, for good or until the next connect().
+	 */
+	public void disconnect();
+}
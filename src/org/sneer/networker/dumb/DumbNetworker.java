@@ -1,7 +1,13 @@
 package org.sneer.networker.dumb;
 
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.sneer.networker.*;
+import org.sneer.networker.loopback.LoopbackDevice;
+import org.sneer.networker.util.BufferPool;
 
 /**
  * This package provides a sample and default implementation of the 
@@ -12,17 +18,39 @@ import org.sneer.networker.*;
  *   network (there's exactly one DumbNetworkerRouter serving a network of 
  *   DumbNetworker clients).
  * 
+ * DumbNetworkers in the same process don't bother the router: they find 
+ *   each other in the default LoopbackRegistry, and what they send each 
+ *   other (or themselves) goes through their LoopbackDevices instead (see 
+ *   setLoopback()).
+ * 
  */
-public class DumbNetworker implements Networker, DeviceListener {
+public class DumbNetworker implements Networker, BatchDeviceListener {
 	
 	public static final int DEFAULT_PORT = 65235;
+	
+	/**
+	 * The largest datagram that can be sent (in fragments, if need be). 
+	 *   send()ing a larger one throws an IllegalArgumentException.
+	 */
+	public static final int MAX_MESSAGE = Fragments.MAX_MESSAGE;
 
-	NetId netId; // overlay address
-	boolean dead;
+	// Nothing on the way in or out takes a lock: the NetId never changes,
+	//   and the rest is volatile, atomic or copy-on-write, so every thread
+	//   reads a consistent snapshot. Only the rare state changes (bind(), 
+	//   setLoopback(), kill()) are synchronized, among themselves.
+	final NetId netId; // overlay address
+	final AtomicBoolean dead = new AtomicBoolean();
+	
+	volatile NetworkerListener listener;
+	volatile DumbDevice device; // read by send() without locking
+	final CopyOnWriteArrayList<Device> devices = new CopyOnWriteArrayList<>();
 	
-	NetworkerListener listener;
-	DumbNetworkerDevice device;
-	ArrayList<Device> devices = new ArrayList(1);
+	// For the DumbNetworkers in this process, and whether we use it.
+	final LoopbackDevice loopback;
+	volatile boolean useLoopback = true;
+	
+	// Where the buffers handed to a LeaseNetworkerListener come from.
+	volatile BufferPool bufferPool = new BufferPool();
 	
 	// You still probably want to call setListener() and then bind()
 	//   once after construction.
@@ -31,6 +59,21 @@ public class DumbNetworker implements Networker, DeviceListener {
 
 		device = new DumbNetworkerDevice(this);
 		devices.add(device);
+		loopback = new LoopbackDevice(this, this);
+		devices.add(loopback);
+	}
+	
+	// Same, but sharing a DumbNetworkerHub's socket and thread with the 
+	//   other DumbNetworkers on it, instead of getting a socket and thread 
+	//   of our own. There's no need to bind(): the hub is already bound 
+	//   (or will be) to its router.
+	public DumbNetworker(NetId netId, DumbNetworkerHub hub) {
+		this.netId = netId;
+
+		device = hub.attach(this);
+		devices.add(device);
+		loopback = new LoopbackDevice(this, this);
+		devices.add(loopback);
 	}
 	
 	// Bind to a router. You usually will call this only once for any given
@@ -39,7 +82,8 @@ public class DumbNetworker implements Networker, DeviceListener {
 		
 		// Our DumbNetworkerDevice is not that dumb: it already knows how to
 		//  handle multiple subsequent connect()s with different router 
-		//  addresses on each call.
+		//  addresses on each call. (On a hub, this just registers us with
+		//  the hub's router again.)
 		device.connect(dumbRouterAddr, dumbRouterPort);
 	}
 	
@@ -48,56 +92,265 @@ public class DumbNetworker implements Networker, DeviceListener {
 		bind(dumbRouterAddr, DEFAULT_PORT);
 	}
 
+	/**
+	 * Bind to several routers at once: we send through whichever of them 
+	 *   answers fastest, and go on with the next best right away when it 
+	 *   stops answering. The DumbNetworkers we talk to must be bound to the
+	 *   same routers, or the routers must be clustered. Not available on 
+	 *   a hub (which stays with its router).
+	 * @param routers Where the routers are.
+	 */
+	public synchronized void bind(InetSocketAddress... routers) {
+		DumbDevice d = device;
+		if (d instanceof DumbNetworkerDevice)
+			((DumbNetworkerDevice)d).connect(routers);
+	}
+	
+	/**
+	 * @return The router we're sending through, or null if we don't know
+	 *   (not bound, or on a hub).
+	 */
+	public InetSocketAddress getRouter() {
+		DumbDevice d = device;
+		return d instanceof DumbNetworkerDevice ? ((DumbNetworkerDevice)d).getRouter() : null;
+	}
+	
+	/**
+	 * @return The smoothed round-trip time to getRouter(), in nanoseconds,
+	 *   or 0 if we don't know.
+	 */
+	public long getRttNanos() {
+		DumbDevice d = device;
+		return d instanceof DumbNetworkerDevice ? ((DumbNetworkerDevice)d).getRttNanos() : 0;
+	}
+
+	/**
+	 * Try direct (router-less) paths to the DumbNetworkers we talk to, by 
+	 *   UDP hole punching, from the next bind() on. The router introduces
+	 *   us to them, and packets go through it until a direct path works 
+	 *   (and whenever it stops working). Not available on a hub.
+	 * @param direct Whether to.
+	 */
+	public void setDirect(boolean direct) {
+		DumbDevice d = device;
+		if (d instanceof DumbNetworkerDevice)
+			((DumbNetworkerDevice)d).setDirect(direct);
+	}
+	
+	/**
+	 * Whether to talk to the DumbNetworkers in this process (and to 
+	 *   ourselves) in-process, which is the default, or through the router
+	 *   like to everybody else (e.g. to load-test the router). That goes
+	 *   both ways: with false we also leave the process's LoopbackRegistry,
+	 *   so what the others send us comes through the router too.
+	 * @param loopback Whether to.
+	 */
+	public synchronized void setLoopback(boolean loopback) {
+		if (dead.get() || useLoopback == loopback)
+			return;
+		useLoopback = loopback;
+		this.loopback.setRegistered(loopback);
+		if (loopback)
+			devices.add(this.loopback);
+		else
+			devices.remove(this.loopback);
+	}
+	
+	/**
+	 * Set the largest datagram we send: bigger payloads go in fragments 
+	 *   that fit, and the other end puts them back together (see 
+	 *   DumbNetworkerDevice.setMtu()). On a hub, set it on the hub instead.
+	 * @param mtu From 576 to 65507 bytes (the default, which only 
+	 *   fragments what wouldn't fit in a datagram at all).
+	 */
+	public void setMtu(int mtu) {
+		DumbDevice d = device;
+		if (d instanceof DumbNetworkerDevice)
+			((DumbNetworkerDevice)d).setMtu(mtu);
+	}
+	
+	/**
+	 * Set the memory and time the reassembly of fragmented messages may 
+	 *   take (see DumbNetworkerDevice.setReassembly()). On a hub, set it on
+	 *   the hub instead.
+	 * @param budget In bytes (16 MB by default).
+	 * @param timeoutMillis How long a message may take to arrive whole (5
+	 *   seconds by default).
+	 */
+	public void setReassembly(int budget, long timeoutMillis) {
+		DumbDevice d = device;
+		if (d instanceof DumbNetworkerDevice)
+			((DumbNetworkerDevice)d).setReassembly(budget, timeoutMillis);
+	}
+	
+	/**
+	 * @param peer Another DumbNetworker's NetId.
+	 * @return true if our packets to it are going straight to it instead 
+	 *   of through the router.
+	 */
+	public boolean isDirect(NetId peer) {
+		DumbDevice d = device;
+		return d instanceof DumbNetworkerDevice && ((DumbNetworkerDevice)d).isDirect(peer);
+	}
+	
+	/**
+	 * Find out whether the router has acknowledged us (since the last 
+	 *   bind(), and lately).
+	 * @return true if it has, false if not (yet) or if we're dead.
+	 */
+	public boolean isConnected() {
+		DumbDevice d = device;
+		return ! dead.get() && d != null && d.isConnected();
+	}
+	
+	/**
+	 * Wait until the router acknowledges us, which after bind() usually 
+	 *   takes one round trip to it.
+	 * @param timeoutMillis How long to wait at most.
+	 * @return true if connected, false if the time ran out (or we're dead
+	 *   or not bound).
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public boolean awaitConnected(long timeoutMillis) throws InterruptedException {
+		DumbDevice d = device;
+		return ! dead.get() && d != null && d.awaitConnected(timeoutMillis);
+	}
+	
+	/**
+	 * Run something when the router acknowledges us: right away, in this
+	 *   thread, if it already has, or else in the network thread when it 
+	 *   does (so it had better be quick). Runs once per call.
+	 * @param callback What to run.
+	 */
+	public void whenConnected(Runnable callback) {
+		DumbDevice d = device;
+		if (! dead.get() && d != null)
+			d.whenConnected(callback);
+	}
+
 	/*
 	 * Networker
 	 */
 	
-	public synchronized NetId getId() {
-		return new NetId(netId);
+	public NetId getId() {
+		return netId; // immutable, so no need to copy it
 	}
 
-	public synchronized void send(NetId receiver, byte[] data) {
-		if (! dead)
-			device.send(receiver, data);
+	// The device's send() is thread-safe, so application threads don't 
+	//   queue up behind each other (or behind receive()) here.
+	// Whoever is in this process gets it from the loopback device.
+	public void send(NetId receiver, byte[] data) {
+		send(receiver, data, 0, data.length);
+	}
+	
+	public void send(NetId receiver, byte[] data, int offset, int length) {
+		Fragments.checkSize(length);
+		DumbDevice d = device;
+		if (d == null || dead.get())
+			return;
+		if (useLoopback && loopback.deliver(receiver, data, offset, length))
+			return;
+		d.send(receiver, data, offset, length);
 	}
 	
-	public synchronized NetworkerListener getListener() {
+	public void send(NetId receiver, ByteBuffer data) {
+		Fragments.checkSize(data.remaining());
+		DumbDevice d = device;
+		if (d == null || dead.get())
+			return;
+		if (useLoopback && loopback.deliver(receiver, data))
+			return;
+		d.send(receiver, data);
+	}
+	
+	public NetworkerListener getListener() {
 		return listener;
 	}
 	
-	public synchronized void setListener(NetworkerListener listener) {
+	public void setListener(NetworkerListener listener) {
 		this.listener = listener;
 	}
 	
-	public synchronized ArrayList<Device> getDevices() {
-		return devices;
+	// A copy, so callers can't screw with ours.
+	public ArrayList<Device> getDevices() {
+		return new ArrayList<>(devices);
 	}
 
+	// Synchronized only against bind() and setLoopback(), so they don't 
+	//   bring a device back to life behind our back.
 	public synchronized void kill() {
-		if (! dead) {
-			dead = true; // note that this should totally happen ...
+		if (dead.compareAndSet(false, true)) { // note that this should totally happen ...
 			
-			device.disconnect();
+			device.disconnect(); // (which waits for its network thread)
 			device = null;
+			loopback.close();
 			devices.clear();
 			
-			if (listener != null)
-				listener.killed(); // ... before this, so isDead() is already true
-					               // and so killed() can join e.g. a network
-						           // thread that is polling isDead() by itself.
+			NetworkerListener l = listener;
+			if (l != null)
+				l.killed(); // ... before this, so isDead() is already true
+					        // and so killed() can join e.g. a network
+						    // thread that is polling isDead() by itself.
 		}
 	}
 
-	public synchronized boolean isDead() {
-		return dead;
+	public boolean isDead() {
+		return dead.get();
 	}
 	
 	/*
 	 * DeviceListener.
 	 */
 
-	public synchronized void receive(NetId sender, byte[] data) {
-		if (! dead && listener != null)
+	public void receive(NetId sender, byte[] data) {
+		NetworkerListener listener = this.listener;
+		if (listener != null && ! dead.get())
 			listener.receive(sender, data);
 	}
+	
+	// The whole batch goes to the same listener (whoever it was when the 
+	//   batch came in). Listeners that can't take batches get the datagrams
+	//   one by one, as byte[]s.
+	public void receiveBatch(NetId[] senders, ByteBuffer[] data, int count) {
+		NetworkerListener listener = this.listener;
+		if (listener == null || dead.get())
+			return;
+		if (listener instanceof BatchNetworkerListener) {
+			((BatchNetworkerListener)listener).receiveBatch(senders, data, count);
+		} else if (listener instanceof LeaseNetworkerListener) {
+			// One copy out of the device's receive buffer (which is reused
+			//   as soon as we return) into a pooled buffer the listener can
+			//   keep for as long as it wants.
+			LeaseNetworkerListener leaseListener = (LeaseNetworkerListener)listener;
+			BufferPool pool = bufferPool;
+			for (int i = 0; i < count && ! dead.get(); ++i) {
+				BufferPool.Lease lease = pool.lease(data[i].remaining());
+				lease.buffer().put(data[i]).flip();
+				leaseListener.receive(senders[i], lease);
+			}
+		} else {
+			for (int i = 0; i < count && ! dead.get(); ++i) {
+				byte[] bytes = new byte[data[i].remaining()];
+				data[i].get(bytes);
+				listener.receive(senders[i], bytes);
+			}
+		}
+	}
+
+	/**
+	 * Use another pool for the buffers handed to a LeaseNetworkerListener,
+	 *   e.g. to share one pool among many DumbNetworkers.
+	 * @param bufferPool The pool to lease receive buffers from.
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * @return The pool the buffers handed to a LeaseNetworkerListener come 
+	 *   from.
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
 }
@@ -1,30 +1,113 @@
 package org.sneer.networker.dumb;
 
 import org.sneer.networker.*;
+import org.sneer.networker.util.TimingWheel;
 import java.io.*;
 import java.nio.*;
 import java.nio.channels.*;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
-class DumbNetworkerDevice implements Device, Runnable {
+class DumbNetworkerDevice implements DumbDevice, MeasuredDevice, Runnable {
 	
 	// all zeroes "Router ping/pong" NetId
 	private static final NetId pingNetId = new NetId();
 	
+	// The network thread's timers (see run()).
+	// (Each RouterLink has a ping timer, from LINK_TIMER on.)
+	static final int PEER_TIMER = 0;
+	static final int LINK_TIMER = 1;
+	
+	// Resolution of the network thread's timers, in milliseconds.
+	static final long TIMER_TICK = 10;
+	
+	// Pinging: once the router has us, we ping it every third of the lease
+	//   it grants (which comes with its pongs), or every KEEPALIVE if it
+	//   doesn't say, but never more than every MIN_KEEPALIVE. A ping
+	//   that goes unanswered is retried after FIRST_RETRY, and then at 
+	//   doubling intervals up to MAX_RETRY, so a lost ping costs us a 
+	//   quarter of a second instead of minutes. After LOST_AFTER unanswered
+	//   pings in a row (about 16 s) we guess the router has lost us.
+	static final long KEEPALIVE = 10 * 60 * 1000;
+	static final long MIN_KEEPALIVE = 1000;
+	static final long FIRST_RETRY = 250;
+	static final long MAX_RETRY = 10 * 60 * 1000;
+	static final int LOST_AFTER = 6;
+	
+	// With several routers, we also ping each of them every PROBE_INTERVAL
+	//   to keep their RTTs fresh, and a router that ignores SUSPECT_AFTER 
+	//   pings in a row (with the quick retries, within a second of the
+	//   first one) is out until it answers again. We only switch to a faster router 
+	//   if it's faster by SWITCH_MARGIN, so we don't flap between two 
+	//   that are about the same.
+	static final long PROBE_INTERVAL = 1000;
+	static final int SUSPECT_AFTER = 2;
+	static final double SWITCH_MARGIN = 0.8;
+	
+	// Packet header size (sender and receiver NetIds) and the largest UDP
+	//   payload there is.
+	static final int HEADER_SIZE = 2 * NetId.SIZE;
+	static final int MAX_DATAGRAM = 65507;
+	
+	// The most datagrams we drain from the socket before calling back, and
+	//   the size of the buffer we drain them into (we only go on draining 
+	//   while a full-size datagram still fits).
+	static final int MAX_BATCH = 64;
+	static final int RECEIVE_BUFFER_SIZE = 256 * 1024;
+	
 	// Networker and DeviceListener
 	DumbNetworker networker; 
 	
-	DatagramChannel channel;
-	InetSocketAddress serverSocketAddr;
+	// Our NetId, which never changes, so we don't have to ask every time.
+	final NetId localId;
 	
-	Thread networkThread;
+	// These are only changed by connect(), open() and disconnect(), which
+	//   are synchronized; send() just reads them.
+	volatile DatagramChannel channel;
+	volatile InetSocketAddress[] serverSocketAddrs;
+	volatile Thread networkThread;
 	
-	ByteBuffer sendbuf = ByteBuffer.allocate(65536);
+	// Our routers (one, unless connect()ed to several), and the one we're
+	//   sending through. The channel is connected to the router if there's
+	//   just the one and no direct paths, else it's unconnected.
+	volatile RouterLink[] links;
+	volatile RouterLink preferred;
+	volatile boolean unconnected;
 	
-	volatile boolean connectedGuess;
+	volatile Selector selector;
+	
+	// Whether to try direct paths to the devices we talk to (see 
+	//   PeerPaths), and the paths, if so. With direct paths the channel 
+	//   can't be connected to the router, since it has to take packets
+	//   from the peers too; that means sends are copied into one buffer 
+	//   instead of going out with a gathering write.
+	volatile boolean direct;
+	volatile PeerPaths paths;
+	
+	// Every thread that sends gets its own SendState, so send() doesn't 
+	//   lock anything.
+	final ThreadLocal<SendState> sendStates = new ThreadLocal<>();
+	
+	// Whether the router has acknowledged us.
+	final Registration registration = new Registration();
+	
+	// Whether we've sent anything since the router last acknowledged us.
+	//   Everything we send renews our lease with the router, so while 
+	//   there's traffic there's no need to ping.
+	volatile boolean sent;
+	
+	// Payloads that don't fit in a datagram of mtu bytes go in fragments
+	//   (see Fragments), each fragmented message with an id of its own.
+	volatile int mtu = MAX_DATAGRAM;
+	volatile int reassemblyBudget = Fragments.REASSEMBLY_BUDGET;
+	volatile long reassemblyTimeout = Fragments.TIMEOUT;
+	final AtomicInteger messageIds = new AtomicInteger((int)System.nanoTime());
 		
 	public DumbNetworkerDevice(DumbNetworker networker) {
 		this.networker = networker;
+		this.localId = networker.getId();
 	}
 
 	public Networker getNetworker() {
@@ -54,16 +137,138 @@ class DumbNetworkerDevice implements Device, Runnable {
 	 * @return true if we succeeded in activating the device (start threads,
 	 *   open sockets, etc.) or false if some lame local error occurred.
 	 */
-	public boolean connect(String serverAddr, int serverPort) {
+	public synchronized boolean connect(String serverAddr, int serverPort) {
 		disconnect(); // Easiest way to implement reconnecting/rebinding the 
 		              //   DatagramChannel is to just nuke the existing one and 
 		              //   make a new one. We could reconnect it and avoid 
 		              //   shooting it and the network thread, but meh.
-		serverSocketAddr = InetSocketAddress.createUnresolved(serverAddr, serverPort);
-		connectedGuess = false;
+		serverSocketAddrs = new InetSocketAddress[] { new InetSocketAddress(serverAddr, serverPort) };
+		registration.lost(); // a new router has to acknowledge us again
 		return isActive();
 	}
 	
+	/**
+	 * Same, but with several routers at once: we register with all of 
+	 *   them, keep measuring how long each takes to answer our pings, and
+	 *   send through the fastest one that answers. When that one stops 
+	 *   answering, we just go on with the next best (which has us already),
+	 *   so there's no reconnecting to be done. For that to work the other 
+	 *   devices must be on the same routers, or the routers must be a 
+	 *   cluster (see DumbNetworkerRouter's --cluster).
+	 * @param routers Where the routers are.
+	 * @return true if we succeeded in activating the device, false if some
+	 *   lame local error occurred.
+	 */
+	public synchronized boolean connect(InetSocketAddress[] routers) {
+		disconnect();
+		serverSocketAddrs = routers.clone();
+		registration.lost();
+		return isActive();
+	}
+	
+	/**
+	 * @return The router we're sending through (null if not active).
+	 */
+	public InetSocketAddress getRouter() {
+		RouterLink link = preferred;
+		return link != null ? link.address : null;
+	}
+	
+	/**
+	 * @return The smoothed round-trip time to getRouter(), in nanoseconds,
+	 *   or 0 if we don't know (yet).
+	 */
+	public long getRttNanos() {
+		RouterLink link = preferred;
+		return link != null ? link.srtt : 0;
+	}
+	
+	/**
+	 * @param receiver Another device's NetId.
+	 * @return The round-trip time to our router (getRttNanos()), which is 
+	 *   as good a guess as any for everybody, since we reach them through 
+	 *   it; 0 until we know. UNREACHABLE if none of our routers answers
+	 *   (and we have no direct path to receiver either).
+	 */
+	@Override
+	public long getRttNanos(NetId receiver) {
+		if (! isUp() && ! isDirect(receiver))
+			return UNREACHABLE;
+		return getRttNanos();
+	}
+	
+	// Whether any of our routers answers our pings.
+	boolean isUp() {
+		RouterLink[] l = links;
+		if (l == null)
+			return false;
+		for (RouterLink link : l) {
+			if (link.up)
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Set the largest datagram we send (UDP payload, our header included).
+	 *   Anything bigger goes in fragments that fit, which the receiving
+	 *   device puts back together, so pick something that doesn't get 
+	 *   fragmented by IP on the way, e.g. 1200. The default is the largest 
+	 *   datagram there is, so only what wouldn't fit at all is fragmented.
+	 * @param mtu From Fragments.MIN_MTU to MAX_DATAGRAM bytes.
+	 */
+	public void setMtu(int mtu) {
+		if (mtu < Fragments.MIN_MTU || mtu > MAX_DATAGRAM)
+			throw new IllegalArgumentException("MTU out of range: " + mtu);
+		this.mtu = mtu;
+	}
+	
+	/**
+	 * @return The largest datagram we send.
+	 */
+	public int getMtu() {
+		return mtu;
+	}
+	
+	/**
+	 * Set how much memory the reassembly of fragmented messages from other
+	 *   devices may take, and how long one may take to arrive whole before
+	 *   its pieces are dropped. Messages that don't fit in the budget are
+	 *   dropped too. The defaults are 16 MB and 5 seconds.
+	 * @param budget In bytes; 0 drops every fragmented message.
+	 * @param timeoutMillis More than 0.
+	 */
+	public void setReassembly(int budget, long timeoutMillis) {
+		Fragments.checkReassembly(budget, timeoutMillis);
+		reassemblyBudget = budget;
+		reassemblyTimeout = timeoutMillis;
+		Fragments f = fragments;
+		if (f != null) {
+			f.budget = budget;
+			f.timeout = timeoutMillis;
+		}
+	}
+	
+	/**
+	 * Try to open direct (router-less) paths to the devices we talk to, 
+	 *   by UDP hole punching, from the next connect() on. Packets go 
+	 *   through the router until a direct path works, and whenever it 
+	 *   doesn't.
+	 * @param direct Whether to.
+	 */
+	public void setDirect(boolean direct) {
+		this.direct = direct;
+	}
+	
+	/**
+	 * @param peer Another device.
+	 * @return true if packets to peer are going straight to it.
+	 */
+	public boolean isDirect(NetId peer) {
+		PeerPaths p = paths;
+		return p != null && p.isDirect(peer);
+	}
+	
 	/**
 	 * Check whether this Device is active.
 	 * @return true if connect() has been called and if either we succeeded in
@@ -71,7 +276,7 @@ class DumbNetworkerDevice implements Device, Runnable {
 	 *   we succeeded in doing so just now. false if some lame local error is 
 	 *   preventing us from starting threads and/or opening sockets.
 	 */
-	public boolean isActive() {
+	public synchronized boolean isActive() {
 		return open();
 	}
 	
@@ -81,22 +286,50 @@ class DumbNetworkerDevice implements Device, Runnable {
 	 * @return true if isActive() and heard from the router recently, false
 	 *   if not active or if router hasn't been heard from in a while.
 	 */
-	public boolean isConnected() {
+	public synchronized boolean isConnected() {
 		if (! open())
 			return false;
-		return connectedGuess;
+		return registration.isConnected();
+	}
+	
+	/**
+	 * Wait until the router acknowledges us (which, after connect(), takes
+	 *   one round trip unless packets get lost).
+	 * @param timeoutMillis How long to wait at most.
+	 * @return true if isConnected(), false if the time ran out.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public boolean awaitConnected(long timeoutMillis) throws InterruptedException {
+		if (! isActive())
+			return false;
+		return registration.await(timeoutMillis);
+	}
+	
+	/**
+	 * Run something when the router acknowledges us: right away in this 
+	 *   thread if it already has, else in the network thread when it does.
+	 *   (So it shouldn't take long.)
+	 * @param callback What to run, once.
+	 */
+	public void whenConnected(Runnable callback) {
+		registration.whenConnected(callback);
 	}
 	
 	/**
 	 * Deactivates this Device. This closes the socket and stops the thread
 	 *   if we haven't done so already.
 	 */
-	public void disconnect() {
+	public synchronized void disconnect() {
 		if (channel != null) {
 			try {
 				channel.close();
 			} catch (IOException ex) {
 			}
+			// The network thread may be sleeping in select() until its next
+			//   timer, which can be minutes away.
+			Selector s = selector;
+			if (s != null)
+				s.wakeup();
 			while (networkThread.isAlive()) {
 				try {
 					networkThread.join();
@@ -105,9 +338,12 @@ class DumbNetworkerDevice implements Device, Runnable {
 			}
 			networkThread = null;
 			channel = null;
+			paths = null;
+			links = null;
+			preferred = null;
 			
 			// Redundant/not needed because isOpen()==false now.
-			connectedGuess = false; 
+			registration.lost(); 
 		}
 	}
 	
@@ -115,26 +351,173 @@ class DumbNetworkerDevice implements Device, Runnable {
 	 * NetworkerDevice / Sender
 	 */
 	
+	// All the send()s are thread-safe and lock-free (once the device is up):
+	//   any number of threads can send at the same time.
+	// The header and the payload go out with one gathering write, so the 
+	//   payload is never copied into a send buffer of ours (unless it has 
+	//   to be fragmented).
 	@Override
 	public void send(NetId receiver, byte[] data) {
-		if (open()) {
-
-			sendbuf.clear();
-			// Header: 64 bytes
-			sendbuf.put(networker.getId().getBytes()); // Sender 256-bit ID
-			sendbuf.put(receiver.getBytes()); // Receiver 256-bit ID
-			// Body -- make sure sendbuf doesn't overflow
-			int amount = Math.min(data.length, sendbuf.remaining());
-			sendbuf.put(data, 0, amount);
-
-			// Send it
-			sendbuf.flip();
-			try {
-				channel.write(sendbuf);
-			} catch (IOException ex) {
+		send(receiver, data, 0, data.length);
+	}
+	
+	@Override
+	public void send(NetId receiver, byte[] data, int offset, int length) {
+		DatagramChannel ch = activeChannel();
+		if (ch == null)
+			return;
+		
+		// A wrapper per send: it's small, and keeping one around to reuse
+		//   would keep the caller's array from being collected.
+		fragment(ch, sendState(), receiver, ByteBuffer.wrap(data, offset, length));
+	}
+	
+	@Override
+	public void send(NetId receiver, ByteBuffer data) {
+		DatagramChannel ch = activeChannel();
+		if (ch == null)
+			return;
+		
+		int position = data.position();
+		int limit = data.limit();
+		fragment(ch, sendState(), receiver, data);
+		data.limit(limit);
+		data.position(position);
+	}
+	
+	// Send the payload in one datagram if it fits, or else in fragments,
+	//   as fast as the socket takes them.
+	void fragment(DatagramChannel ch, SendState state, NetId receiver, ByteBuffer payload) {
+		Fragments.checkSize(payload.remaining());
+		int maxPayload = mtu - HEADER_SIZE;
+		if (! Fragments.needed(payload, maxPayload)) {
+			write(ch, state, receiver, payload);
+			return;
+		}
+		int count = Fragments.count(payload.remaining(), maxPayload);
+		int id = messageIds.incrementAndGet();
+		ByteBuffer fragment = state.fragment();
+		long stalled = 0;
+		for (int i = 0; i < count; ) {
+			Fragments.fill(fragment, payload, id, i, count);
+			if (write(ch, state, receiver, fragment)) {
+				++i;
+				stalled = 0;
+				continue;
 			}
+			// No room in the send buffer: wait for it to drain a bit.
+			long now = System.nanoTime();
+			if (stalled == 0)
+				stalled = now;
+			else if (now - stalled > Fragments.STALL_NANOS)
+				return;
+			LockSupport.parkNanos(Fragments.PACE_NANOS);
 		}
 	}
+	
+	// Send header + payload as one datagram. Returns false only if the 
+	//   socket had no room for it right now: anything else (sent, or lost
+	//   for good) is true, as trying again wouldn't help.
+	boolean write(DatagramChannel ch, SendState state, NetId receiver, ByteBuffer payload) {
+		// Header: 64 bytes, our 256-bit ID being already there
+		ByteBuffer header = state.header;
+		header.clear();
+		receiver.write(header, NetId.SIZE); // Receiver 256-bit ID
+		if (unconnected) {
+			// To the peer, if we can, or else to our best router.
+			PeerPaths p = paths;
+			InetSocketAddress to = p != null ? p.route(receiver) : null;
+			if (to != null)
+				return sendTo(ch, state, payload, to, false);
+			RouterLink via = preferred;
+			if (via == null)
+				return true; // just disconnect()ed
+			return sendTo(ch, state, payload, via.address, true);
+		}
+		state.buffers[1] = payload;
+		try {
+			if (ch.write(state.buffers) == 0)
+				return false;
+			if (! sent)
+				sent = true; // (reading first is cheaper than writing)
+		} catch (IOException ex) {
+		} finally {
+			state.buffers[1] = null; // don't hold on to the caller's data
+		}
+		return true;
+	}
+	
+	// Send header + payload as one datagram, on an unconnected channel.
+	//   Only what goes through the router renews our lease with it, so
+	//   what goes straight to a peer doesn't count as sent (or a device
+	//   that only talks over direct paths would never ping again).
+	//   Returns false as write() does.
+	boolean sendTo(DatagramChannel ch, SendState state, ByteBuffer payload, InetSocketAddress to, boolean toRouter) {
+		ByteBuffer datagram = state.datagram();
+		datagram.clear();
+		state.header.clear();
+		datagram.put(state.header);
+		int position = payload.position();
+		datagram.put(payload);
+		payload.position(position);
+		datagram.flip();
+		try {
+			if (ch.send(datagram, to) == 0)
+				return false;
+			if (toRouter && ! sent)
+				sent = true;
+		} catch (IOException ex) {
+		}
+		return true;
+	}
+	
+	SendState sendState() {
+		SendState state = sendStates.get();
+		if (state == null) {
+			state = new SendState(localId);
+			sendStates.set(state);
+		}
+		return state;
+	}
+	
+	// What a thread needs to send: a direct header buffer with our NetId
+	//   already written at the start (so the sender is never encoded again),
+	//   and the array for the gathering write. Nothing of the caller's is
+	//   kept here between sends.
+	static class SendState {
+		
+		final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+		final ByteBuffer[] buffers = new ByteBuffer[2];
+		ByteBuffer datagram; // only for unconnected sends, made on demand
+		ByteBuffer fragment; // only for fragmented sends, made on demand
+		
+		SendState(NetId localId) {
+			localId.write(header, 0); // Sender 256-bit ID, for good
+			buffers[0] = header;
+		}
+		
+		ByteBuffer datagram() {
+			if (datagram == null)
+				datagram = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+			return datagram;
+		}
+		
+		ByteBuffer fragment() {
+			if (fragment == null)
+				fragment = ByteBuffer.allocateDirect(MAX_DATAGRAM - HEADER_SIZE);
+			return fragment;
+		}
+	}
+	
+	// The channel to send to, or null if the device isn't up and can't be
+	//   brought up. Only takes the lock if it has to (re)open.
+	DatagramChannel activeChannel() {
+		DatagramChannel ch = channel;
+		Thread t = networkThread;
+		if (ch != null && t != null && t.isAlive())
+			return ch;
+		return open() ? channel : null;
+	}
 
 	/*
 	 * These are the internals. 
@@ -143,43 +526,94 @@ class DumbNetworkerDevice implements Device, Runnable {
 	 * run() is what the thread uses to do its stuff.
 	 */
 	
-	private boolean open() {
+	private synchronized boolean open() {
 		if (channel == null || !networkThread.isAlive()) {
+			InetSocketAddress[] routers = serverSocketAddrs;
+			if (routers == null || routers.length == 0)
+				return false; // never connect()ed
+			for (InetSocketAddress router : routers) {
+				if (router.isUnresolved())
+					return false; // can't resolve a router
+			}
 			try {
-				channel = DatagramChannel.open().connect(serverSocketAddr);
+				channel = DatagramChannel.open();
+				channel.configureBlocking(false); // we use a Selector
+				Fragments.sizeBuffers(channel);
+				unconnected = direct || routers.length > 1;
+				if (unconnected)
+					channel.bind(null); // takes packets from anyone
+				else
+					channel.connect(routers[0]);
+				paths = direct ? new PeerPaths(this, localId) : null;
 			} catch (IOException ex) {
 				return false; // cannot open, cannot connect, unresolved addr, etc.
 			}
+			RouterLink[] l = new RouterLink[routers.length];
+			long nonce = System.nanoTime() ^ localId.hashCode();
+			for (int i = 0; i < l.length; ++i)
+				l[i] = new RouterLink(routers[i], LINK_TIMER + i, nonce + ((long)i << 48));
+			links = l;
+			preferred = l[0]; // until we know better
 			networkThread = new Thread(this);
 			networkThread.start();
 		}
 		return true;
 	}
 	
+	// Network thread state: the timers (the pinging state of each router is
+	//   in its RouterLink).
+	TimingWheel timers;
+	ByteBuffer pingbuf;
+	
 	@Override
 	public void run() {
 		
-		// this receives (blocking) but it also has to ping every 10 minutes, 
-		//   so the receive must time out every e.g. 2 seconds or so.
+		// this receives (blocking) but it also has to ping every 10 minutes.
+		//   the ping is a timer in a TimingWheel, and we block in the 
+		//   selector exactly until the next timer is due, so an idle device
+		//   doesn't wake up at all between pings.
 		// datagrampacket sucks ass, so we'll bow down to using selectors
 		//   instead of going to the datagramsocket setsotimeout.
 		
 		// how ping-ponging with the router works:
-		// we send a ping when nextPingTime expires. at first connecting/starting
-		//   the thread, that means immediately.
-		// from there we continue to ping every N seconds, where N is 4, 8, 16,
-		//   32, 64 ... seconds, until we get a pong back from the server.
-		// when we get any packet back from the router, including pongs, we 
-		//   leave the router alone for 10 minutes.
-		// after 10 minutes we start bothering it again.
+		// we send a ping when the ping timer expires. at first connecting/
+		//   starting the thread, that means immediately.
+		// our pings are BINDs (see DumbProtocol), which the router 
+		//   acknowledges with an ACK pong. until one comes back, we ping
+		//   again after 0.25, 0.5, 1, 2, 4 ... seconds, so getting 
+		//   registered takes one round trip, or a little more if packets
+		//   get lost, instead of minutes.
+		// when we get a pong back, we leave the router alone for a third 
+		//   of the lease it says it gives us (10 minutes if it doesn't say).
+		// after that we start bothering it again, unless we've been sending
+		//   stuff through it, which renews the lease just as well.
+		// any other packet from the router also tells us that it has us,
+		//   but not for how long, so that doesn't put off the ping.
+		// with several routers, all of that goes for each of them.
+		
+		long now = System.currentTimeMillis();
+		final RouterLink[] links = this.links;
+		timers = new TimingWheel(LINK_TIMER + links.length, TIMER_TICK, now);
+		for (RouterLink link : links)
+			timers.schedule(link.timer, now);
+		pingbuf = ByteBuffer.allocate(DumbProtocol.OP_OFFSET + DumbProtocol.BIND_SIZE);
 		
-		long nextPingTime = 0;
-		int pingTimeDelta = 4; // starts at +4s and doubles after every ping
-		ByteBuffer pingbuf = ByteBuffer.allocate(64);
+		TimingWheel.Handler timerHandler = new TimingWheel.Handler() {
+			@Override
+			public void expired(int timer) {
+				if (timer >= LINK_TIMER)
+					ping(links[timer - LINK_TIMER]);
+				else if (timer == PEER_TIMER)
+					tickPeers();
+			}
+		};
+		if (paths != null)
+			timers.schedule(PEER_TIMER, now + 1000);
 						
 		Selector selector;
 		try {
 			selector = Selector.open();
+			this.selector = selector;
 			channel.register(selector, SelectionKey.OP_READ);
 		} catch (IOException ex) {
 			// Wow, really? Then we give up.
@@ -189,59 +623,38 @@ class DumbNetworkerDevice implements Device, Runnable {
 			return;
 		}
 		
-		ByteBuffer rcvbuf = ByteBuffer.allocate(65536);
+		arena = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+		slices = new ByteBuffer[MAX_BATCH];
+		for (int i = 0; i < MAX_BATCH; ++i)
+			slices[i] = arena.asReadOnlyBuffer();
+		senders = new NetId[MAX_BATCH];
+		fragments = new Fragments(reassemblyBudget, reassemblyTimeout);
+		wholeSenders = new ArrayList<>();
+		wholes = new ArrayList<>();
+		oneSender = new NetId[1];
+		oneWhole = new ByteBuffer[1];
 
-		// While channel open (not closed) and connected...
-		while (channel.isConnected()) {
+		// While channel open (not closed)...
+		while (channel.isOpen()) {
 			
-			// Try to read something with a timeout
+			// Try to read something, waking up when the next timer is due
 			try {
-				if (selector.select(2000) > 0) {
+				// Somebody wants introductions (see PeerPaths.route()).
+				if (paths != null && ! paths.introductions.isEmpty()) {
+					paths.introduce(channel, preferred.address, System.currentTimeMillis());
+					timers.schedule(PEER_TIMER, System.currentTimeMillis() + PeerPaths.PUNCH_INTERVAL);
+				}
 				
-					// This doesn't block because it is ready to read.
-					rcvbuf.clear();
-					channel.receive(rcvbuf);
-					rcvbuf.flip();
-					
-					// Is it valid? If not, ignore it.
-					if (rcvbuf.remaining() >= 64) {
-						
-						// read header
-						NetId sender = new NetId();
-						NetId receiver = new NetId();
-						rcvbuf.get(sender.getBytes());
-						rcvbuf.get(receiver.getBytes());
-						
-						// make sure we're the intended recipient, otherwise
-						//  ignore it.
-						if (networker.getId().equals(receiver)) {
-							
-							// if the sender is the all-zeroes NetId, this
-							//   means it is a "pong" from the server. we 
-							//   don't forward that to the app.
-							// yes, this is ugly: we have polluted the 
-							//   address space with a "special address" that
-							//   can't be used by apps.
-							if (! sender.equals(pingNetId)) {
-							
-								// actual valid sender, so forward it.
-								byte[] data = new byte[rcvbuf.remaining()];
-								rcvbuf.get(data);
-								networker.receive(sender, data);
-							}
-							
-							// reset the pinger to +10 minutes in any case
-							//  (pongs or successfully routed messages, they 
-							//   are the same thing as far as knowing the 
-							//   router has got our address right -- both 
-							//   push the pinging to 10min in the future).
-							nextPingTime = System.currentTimeMillis() + 10 * 60 * 1000;
-							pingTimeDelta = 4; // reset to 4 second interval between pings
-							
-							// we got something so we are being seen
-							connectedGuess = true;
-						}
-					}
+				long timeout = timers.nextExpiry() - System.currentTimeMillis();
+				int ready;
+				if (timeout <= 0)
+					ready = selector.selectNow();
+				else
+					ready = selector.select(timeout);
+				
+				if (ready > 0) {
+					selector.selectedKeys().clear();
+					drain();
 				}
 			} catch (IOException ex) {
 				// We don't care. If it is something serious the
@@ -250,40 +663,275 @@ class DumbNetworkerDevice implements Device, Runnable {
 				//   so we don't really have to care about that.
 			}
 			
-			// Check if it is time to ping the central router -- every 10 mins
-			long now = System.currentTimeMillis();
-			if (now > nextPingTime) {
-				
-				// If we're having to ping, it means we might have been
-				//   forgotten. But let's not be hasty: let's wait for a few
-				//   pings to go unanswered.
-				// The easiest way to accomplish this is to take our 4,8,16,32
-				//   64,128,256,512,600,600,600... series and plug into it at
-				//   some point. Say the 32 point... which will give us three
-				//   unanswered packets within 28 seconds to consider the
-				//   router gone.
-				if (pingTimeDelta >= 32)
-					connectedGuess = false;
-				
-				// Ping a lot at the start but increase interval as we continue 
-				//   to ping without getting a response.
-				nextPingTime = now + pingTimeDelta * 1000;
-				pingTimeDelta *= 2;
-				if (pingTimeDelta > 600) // cap to 10 minutes maximum ping interval
-					pingTimeDelta = 600;
-				
-				// Send the ping
-				pingbuf.clear();
-				pingbuf.put(networker.getId().getBytes());
-				pingbuf.put(pingNetId.getBytes()); // all zeroes
-				pingbuf.flip();
-				try {
-					channel.send(pingbuf, serverSocketAddr);
-				} catch (IOException ex) {
-					// We don't care.
+			// Run whatever timers are due (e.g. ping the central router)
+			timers.advance(System.currentTimeMillis(), timerHandler);
+		}
+		
+		try {
+			this.selector = null;
+			selector.close();
+		} catch (IOException ex) {
+		}
+	}
+	
+	// Wake the network thread up (e.g. when there's something for it to 
+	//   send).
+	void wakeup() {
+		Selector s = selector;
+		if (s != null)
+			s.wakeup();
+	}
+	
+	// Time to punch holes or keep them open.
+	private void tickPeers() {
+		long now = System.currentTimeMillis();
+		paths.tick(channel, now);
+		timers.schedule(PEER_TIMER, now + (paths.isPunching() ? PeerPaths.PUNCH_INTERVAL : 1000));
+	}
+	
+	// Network thread receive state: the buffer we drain the socket into, 
+	//   the read-only views of it we hand out (one per datagram of a batch)
+	//   and the batch's senders.
+	ByteBuffer arena;
+	ByteBuffer[] slices;
+	NetId[] senders;
+	
+	// ... and the reassembly of fragments, with the messages completed 
+	//   during a drain(), which are handed over one by one after the batch.
+	volatile Fragments fragments; // (for setReassembly())
+	ArrayList<NetId> wholeSenders;
+	ArrayList<ByteBuffer> wholes;
+	NetId[] oneSender;
+	ByteBuffer[] oneWhole;
+	
+	// The datagram between start and end of the arena goes in the batch at
+	//   count, whether it came through a router or straight from a peer.
+	//   Bursts tend to come from the same sender, so its NetId isn't built
+	//   again if it is. Fragments go to reassembly instead, which copies
+	//   them, so their space in the arena is reused.
+	// Returns whether it went in the batch.
+	private boolean take(int count, int start, int end) {
+		NetId previous = count > 0 ? senders[count - 1] : null;
+		senders[count] = previous != null && previous.equalsAt(arena, start) ? previous : NetId.read(arena, start);
+		slices[count].limit(end);
+		slices[count].position(start + HEADER_SIZE);
+		if (! Fragments.isFragment(slices[count]))
+			return true;
+		reassemble(senders[count], slices[count]);
+		arena.position(start);
+		return false;
+	}
+	
+	// Receive every datagram that is waiting (as many as fit in a batch) 
+	//   and hand the ones for us to the networker in one go.
+	private void drain() throws IOException {
+		arena.clear();
+		int count = 0;
+		boolean heard = false;
+		while (count < MAX_BATCH && arena.remaining() >= MAX_DATAGRAM) {
+			
+			// This doesn't block: it's non-blocking, and returns null when
+			//   there's nothing left.
+			int start = arena.position();
+			SocketAddress source = channel.receive(arena);
+			if (source == null)
+				break;
+			int end = arena.position();
+			
+			// Not from a router? Then it's from a peer over a direct 
+			//   path (or from a stranger, whom we ignore). Peers send us
+			//   PUNCHes and data.
+			RouterLink link = unconnected ? linkOf(source) : links[0];
+			if (link == null) {
+				if (paths == null) {
+					arena.position(start);
+					continue;
+				}
+				long now = System.currentTimeMillis();
+				if (end - start >= DumbProtocol.OP_OFFSET + 1 && pingNetId.equalsAt(arena, start + NetId.SIZE)) {
+					if (arena.get(start + DumbProtocol.OP_OFFSET) == DumbProtocol.PUNCH)
+						paths.punched(arena, start, start + DumbProtocol.OP_OFFSET, end, (InetSocketAddress)source, channel, now);
+					arena.position(start);
+					continue;
+				}
+				if (! paths.fromPeer((InetSocketAddress)source, now) || end - start < HEADER_SIZE 
+						|| ! localId.equalsAt(arena, start + NetId.SIZE) || pingNetId.equalsAt(arena, start)) {
+					arena.position(start);
+					continue;
+				}
+				if (take(count, start, end))
+					++count;
+				continue;
+			}
+			
+			// Is it valid? And are we the intended recipient? If not, 
+			//   ignore it (and reuse its space). The header is checked in
+			//   place.
+			if (end - start < HEADER_SIZE || ! localId.equalsAt(arena, start + NetId.SIZE)) {
+				arena.position(start);
+				continue;
+			}
+			
+			// Pongs or successfully routed messages, they are the same
+			//   thing as far as knowing the router has got our address
+			//   right.
+			heard = true;
+			
+			// if the sender is the all-zeroes NetId, this means it is a
+			//   "pong" from the server. we don't forward that to the app.
+			// yes, this is ugly: we have polluted the address space with a
+			//   "special address" that can't be used by apps.
+			if (pingNetId.equalsAt(arena, start)) {
+				byte op = end - start > DumbProtocol.OP_OFFSET ? arena.get(start + DumbProtocol.OP_OFFSET) : 0;
+				if (op == DumbProtocol.PEER) {
+					// an introduction: not an answer to a ping of ours.
+					if (paths != null)
+						paths.introduced(arena, start + DumbProtocol.OP_OFFSET, end, channel, System.currentTimeMillis());
+					arena.position(start);
+					continue;
 				}
+				ponged(link, start, end, op);
+				arena.position(start);
+				continue;
 			}
+			
+			// actual valid sender, so it goes in the batch.
+			if (take(count, start, end))
+				++count;
+		}
+		
+		if (heard) {
+			// we got something so we are being seen (this also lets 
+			//   whoever is waiting for that know)
+			registration.connected();
+		}
+		
+		if (count > 0)
+			networker.receiveBatch(senders, slices, count);
+		
+		for (int i = 0; i < wholes.size(); ++i) {
+			oneSender[0] = wholeSenders.get(i);
+			oneWhole[0] = wholes.get(i);
+			networker.receiveBatch(oneSender, oneWhole, 1);
+		}
+		if (! wholes.isEmpty()) {
+			wholeSenders.clear();
+			wholes.clear();
+			oneWhole[0] = null;
+		}
+	}
+	
+	// A fragment: if it completes its message, that's delivered after 
+	//   the batch.
+	void reassemble(NetId sender, ByteBuffer fragment) {
+		ByteBuffer whole = fragments.add(sender, fragment, System.currentTimeMillis());
+		if (whole != null) {
+			wholeSenders.add(sender);
+			wholes.add(whole);
+		}
+	}
+	
+	// Which of our routers this came from, if any.
+	RouterLink linkOf(SocketAddress source) {
+		for (RouterLink link : links) {
+			if (link.address.equals(source))
+				return link;
+		}
+		return null;
+	}
+	
+	// A pong from a router (in the arena, from start to end).
+	private void ponged(RouterLink link, int start, int end, byte op) {
+		long now = System.currentTimeMillis();
+		if (end - start >= DumbProtocol.OP_OFFSET + DumbProtocol.ACK_SIZE && op == DumbProtocol.ACK) {
+			// The ACK of our latest ping gives us an RTT sample; older
+			//   ones just say the router is there.
+			if (arena.getLong(start + DumbProtocol.OP_OFFSET + 1) == link.nonce && link.pingSentAt != 0) {
+				link.sample(System.nanoTime() - link.pingSentAt);
+				link.pingSentAt = 0;
+			}
+			int lease = arena.getInt(start + DumbProtocol.OP_OFFSET + 1 + 8);
+			if (lease > 0)
+				link.keepalive = Math.max(MIN_KEEPALIVE, lease / 3);
+		}
+		
+		// the lease was just renewed: reset the pinger to a third of it
+		//   in the future (or sooner, if it's time to measure the RTT 
+		//   again).
+		long next = link.keepalive;
+		if (links.length > 1)
+			next = Math.min(next, PROBE_INTERVAL);
+		timers.schedule(link.timer, now + next);
+		link.pingDelay = FIRST_RETRY; // back to quick retries
+		link.unanswered = 0;
+		if (links.length == 1)
+			sent = false;
+		link.up = true;
+		choose();
+	}
+	
+	// Send through the fastest router that's up, unless the one we have is
+	//   up and not much slower (so we don't flap between two that are about
+	//   as fast). If none is up, we stay with the one we have.
+	void choose() {
+		RouterLink best = null;
+		for (RouterLink link : links) {
+			if (link.up && (best == null || link.rank() < best.rank()))
+				best = link;
+		}
+		if (best == null)
+			return;
+		RouterLink current = preferred;
+		if (current != null && current.up && ! (best.rank() < current.rank() * SWITCH_MARGIN))
+			return;
+		preferred = best;
+	}
+	
+	// A router's ping timer went off: it's time to ping it.
+	private void ping(RouterLink link) {
+		long now = System.currentTimeMillis();
+		
+		// If we sent something since the last pong, the router renewed our
+		//   lease then, which is no longer ago than this keepalive period:
+		//   the ping can wait another period. (Only with one router: with
+		//   more, the pings also measure them.)
+		if (links.length == 1 && link.up && link.unanswered == 0 && sent) {
+			sent = false;
+			timers.schedule(link.timer, now + link.keepalive);
+			return;
+		}
+		
+		// If we're having to ping, it means we might have been
+		//   forgotten. But let's not be hasty: let's wait for a few
+		//   pings to go unanswered (the retries are quick, so that's
+		//   about 16 seconds) to consider the router gone. With several
+		//   routers we give up on one much sooner, since we have others.
+		if (++link.unanswered > (links.length > 1 ? SUSPECT_AFTER : LOST_AFTER) && link.up) {
+			link.up = false;
+			choose();
+			boolean anyUp = false;
+			for (RouterLink l : links)
+				anyUp |= l.up;
+			if (! anyUp)
+				registration.lost();
+		}
+		
+		// Ping a lot at the start but increase interval as we continue 
+		//   to ping without getting a response.
+		timers.schedule(link.timer, now + link.pingDelay);
+		link.pingDelay = Math.min(link.pingDelay * 2, MAX_RETRY);
+		
+		// Send the ping, which is a BIND with a fresh nonce
+		pingbuf.clear();
+		localId.put(pingbuf);
+		pingNetId.put(pingbuf); // all zeroes
+		pingbuf.put(DumbProtocol.BIND).putLong(++link.nonce);
+		pingbuf.flip();
+		link.pingSentAt = System.nanoTime();
+		try {
+			channel.send(pingbuf, link.address); // connected or not
+		} catch (IOException ex) {
+			// We don't care.
 		}
 	}
-
 }
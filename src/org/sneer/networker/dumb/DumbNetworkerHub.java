@@ -0,0 +1,795 @@
+package org.sneer.networker.dumb;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.sneer.networker.*;
+import org.sneer.networker.util.TimingWheel;
+
+/**
+ * Hosts any number of DumbNetworkers on one socket and one network thread.
+ *
+ * A DumbNetworker normally gets a DumbNetworkerDevice of its own, which is
+ *   a socket, a selector and a thread per NetId. A process hosting lots of
+ *   NetIds (a gateway, say) can instead create one hub and then its
+ *   DumbNetworkers with new DumbNetworker(netId, hub): they all share the
+ *   hub's socket, incoming packets go to the right one by their receiver
+ *   NetId, and the keepalive registers the NetIds with the router in
+ *   batches (DumbProtocol.REGISTER) instead of one ping per NetId.
+ *
+ * Usage:
+ *
+ *   DumbNetworkerHub hub = new DumbNetworkerHub();
+ *   hub.connect("router.example.com", DumbNetworker.DEFAULT_PORT);
+ *   DumbNetworker a = new DumbNetworker(idA, hub);
+ *   DumbNetworker b = new DumbNetworker(idB, hub);
+ *   ...
+ *   hub.disconnect(); // after killing the DumbNetworkers, if you like
+ *
+ * All the hosted DumbNetworkers are called back from the hub's one thread,
+ *   so a slow listener holds up all of them.
+ */
+public class DumbNetworkerHub implements Runnable {
+
+	// all zeroes "Router ping/pong" NetId
+	static final NetId pingNetId = new NetId();
+
+	// The network thread's timers (see run()).
+	static final int PING_TIMER = 0;
+	static final int REGISTER_TIMER = 1;
+	static final int RETRY_TIMER = 2;
+	static final int TIMER_COUNT = 3;
+
+	// How many REGISTER packets we send per timer tick while registering,
+	//   so registering 100k NetIds takes a few seconds instead of hitting the
+	//   router (and its rate limits) with thousands of packets at once.
+	static final int REGISTERS_PER_TICK = 8;
+
+	static final int HEADER_SIZE = DumbProtocol.HEADER_SIZE;
+	static final int MAX_DATAGRAM = DumbNetworkerDevice.MAX_DATAGRAM;
+	static final int MAX_BATCH = DumbNetworkerDevice.MAX_BATCH;
+
+	// Who we host, by NetId.
+	final ConcurrentHashMap<NetId, HubDevice> hosted = new ConcurrentHashMap<>();
+
+	// NetIds that just joined, for the network thread to register right away.
+	final ConcurrentLinkedQueue<NetId> joined = new ConcurrentLinkedQueue<>();
+
+	// These are only changed by connect(), open() and disconnect(), which
+	//   are synchronized; send() just reads them.
+	volatile DatagramChannel channel;
+	volatile InetSocketAddress serverSocketAddr;
+	volatile Thread networkThread;
+	volatile Selector selector;
+
+	// Every thread that sends gets its own SendState, so send() doesn't
+	//   lock anything. The hub writes both NetIds of the header every time.
+	final ThreadLocal<DumbNetworkerDevice.SendState> sendStates = new ThreadLocal<>();
+
+	// Whether the router answers (ACKs) our REGISTERs at all. Each 
+	//   HubDevice also has a Registration of its own, for its NetId.
+	final Registration registration = new Registration();
+	
+	// As in DumbNetworkerDevice: the largest datagram we send, and the ids
+	//   of fragmented messages.
+	volatile int mtu = MAX_DATAGRAM;
+	volatile int reassemblyBudget = Fragments.REASSEMBLY_BUDGET;
+	volatile long reassemblyTimeout = Fragments.TIMEOUT;
+	final AtomicInteger messageIds = new AtomicInteger((int)System.nanoTime());
+
+	/**
+	 * Start using the given central router (or another one, if we were
+	 *   connected already).
+	 * @param serverAddr IP address where the central router is supposed to be.
+	 * @param serverPort UDP port where the central router is supposed to be.
+	 * @return true if we succeeded in opening the socket and starting the
+	 *   thread, false if some lame local error occurred.
+	 */
+	public synchronized boolean connect(String serverAddr, int serverPort) {
+		disconnect();
+		serverSocketAddr = new InetSocketAddress(serverAddr, serverPort);
+		lost();
+		return isActive();
+	}
+
+	/**
+	 * @return true if connect() was called and the socket and thread are up
+	 *   (or could be brought up just now).
+	 */
+	public synchronized boolean isActive() {
+		return open();
+	}
+
+	/**
+	 * @return true if isActive() and the router ACKed some of our NetIds
+	 *   recently (each hosted DumbNetworker knows about its own).
+	 */
+	public synchronized boolean isConnected() {
+		if (! open())
+			return false;
+		return registration.isConnected();
+	}
+
+	/**
+	 * Wait until the router answers us.
+	 * @param timeoutMillis How long to wait at most.
+	 * @return true if isConnected(), false if the time ran out.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public boolean awaitConnected(long timeoutMillis) throws InterruptedException {
+		if (! isActive())
+			return false;
+		return registration.await(timeoutMillis);
+	}
+
+	/**
+	 * Run something when the router answers us: right away in this thread
+	 *   if it already has, else in the network thread when it does.
+	 * @param callback What to run, once.
+	 */
+	public void whenConnected(Runnable callback) {
+		registration.whenConnected(callback);
+	}
+
+	/**
+	 * Close the socket and stop the thread. The hosted DumbNetworkers stay
+	 *   (unreachable) until the next connect().
+	 */
+	public synchronized void disconnect() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+			}
+			Selector s = selector;
+			if (s != null)
+				s.wakeup();
+			while (networkThread.isAlive()) {
+				try {
+					networkThread.join();
+				} catch (InterruptedException ex) {
+				}
+			}
+			networkThread = null;
+			channel = null;
+			lost();
+		}
+	}
+
+	/**
+	 * Set the largest datagram the hosted DumbNetworkers send (see 
+	 *   DumbNetworkerDevice.setMtu()).
+	 * @param mtu From 576 to 65507 bytes.
+	 */
+	public void setMtu(int mtu) {
+		if (mtu < Fragments.MIN_MTU || mtu > MAX_DATAGRAM)
+			throw new IllegalArgumentException("MTU out of range: " + mtu);
+		this.mtu = mtu;
+	}
+	
+	/**
+	 * @return The largest datagram the hosted DumbNetworkers send.
+	 */
+	public int getMtu() {
+		return mtu;
+	}
+
+	/**
+	 * Set the reassembly budget and timeout for what comes in for all the
+	 *   hosted DumbNetworkers (see DumbNetworkerDevice.setReassembly()).
+	 * @param budget In bytes; 0 drops every fragmented message.
+	 * @param timeoutMillis More than 0.
+	 */
+	public void setReassembly(int budget, long timeoutMillis) {
+		Fragments.checkReassembly(budget, timeoutMillis);
+		reassemblyBudget = budget;
+		reassemblyTimeout = timeoutMillis;
+		Fragments f = fragments;
+		if (f != null) {
+			f.budget = budget;
+			f.timeout = timeoutMillis;
+		}
+	}
+
+	/**
+	 * @return How many DumbNetworkers this hub hosts.
+	 */
+	public int getHostedCount() {
+		return hosted.size();
+	}
+
+	/*
+	 * Hosting (see DumbNetworker(NetId, DumbNetworkerHub)).
+	 */
+
+	DumbDevice attach(DumbNetworker networker) {
+		NetId id = networker.getId();
+		HubDevice device = new HubDevice(networker, id);
+		if (hosted.putIfAbsent(id, device) != null)
+			throw new IllegalArgumentException("NetId already hosted by this hub");
+		register(id);
+		return device;
+	}
+
+	void detach(HubDevice device) {
+		hosted.remove(device.localId, device);
+	}
+
+	// The router may have forgotten all of us.
+	void lost() {
+		registration.lost();
+		for (HubDevice device : hosted.values())
+			device.registration.lost();
+	}
+
+	// Have the network thread register a NetId as soon as it can.
+	void register(NetId id) {
+		joined.add(id);
+		Selector s = selector;
+		if (s != null)
+			s.wakeup();
+	}
+
+	// A hosted DumbNetworker's Device: its share of the hub.
+	class HubDevice implements DumbDevice {
+
+		final DumbNetworker networker;
+		final NetId localId;
+
+		// Whether the router ACKed a REGISTER with our NetId in it.
+		final Registration registration = new Registration();
+
+		HubDevice(DumbNetworker networker, NetId localId) {
+			this.networker = networker;
+			this.localId = localId;
+		}
+
+		@Override
+		public Networker getNetworker() {
+			return networker;
+		}
+
+		@Override
+		public DeviceListener getListener() {
+			return networker;
+		}
+
+		@Override
+		public void send(NetId receiver, byte[] data) {
+			send(receiver, data, 0, data.length);
+		}
+
+		@Override
+		public void send(NetId receiver, byte[] data, int offset, int length) {
+			DatagramChannel ch = activeChannel();
+			if (ch == null)
+				return;
+			fragment(ch, sendState(), localId, receiver, ByteBuffer.wrap(data, offset, length));
+		}
+
+		@Override
+		public void send(NetId receiver, ByteBuffer data) {
+			DatagramChannel ch = activeChannel();
+			if (ch == null)
+				return;
+			int position = data.position();
+			int limit = data.limit();
+			fragment(ch, sendState(), localId, receiver, data);
+			data.limit(limit);
+			data.position(position);
+		}
+
+		// The hub talks to one router: whatever the hub was connect()ed
+		//   to. This just registers us again.
+		@Override
+		public boolean connect(String serverAddr, int serverPort) {
+			register(localId);
+			return isActive();
+		}
+
+		@Override
+		public boolean isConnected() {
+			return isActive() && registration.isConnected();
+		}
+
+		@Override
+		public boolean awaitConnected(long timeoutMillis) throws InterruptedException {
+			if (! isActive())
+				return false;
+			return registration.await(timeoutMillis);
+		}
+
+		@Override
+		public void whenConnected(Runnable callback) {
+			registration.whenConnected(callback);
+		}
+
+		@Override
+		public void disconnect() {
+			detach(this);
+			registration.lost();
+		}
+	}
+
+	/*
+	 * Sending.
+	 */
+
+	// As in DumbNetworkerDevice.
+	void fragment(DatagramChannel ch, DumbNetworkerDevice.SendState state, NetId sender, NetId receiver, ByteBuffer payload) {
+		Fragments.checkSize(payload.remaining());
+		int maxPayload = mtu - HEADER_SIZE;
+		if (! Fragments.needed(payload, maxPayload)) {
+			write(ch, state, sender, receiver, payload);
+			return;
+		}
+		int count = Fragments.count(payload.remaining(), maxPayload);
+		int id = messageIds.incrementAndGet();
+		ByteBuffer fragment = state.fragment();
+		long stalled = 0;
+		for (int i = 0; i < count; ) {
+			Fragments.fill(fragment, payload, id, i, count);
+			if (write(ch, state, sender, receiver, fragment)) {
+				++i;
+				stalled = 0;
+				continue;
+			}
+			long now = System.nanoTime();
+			if (stalled == 0)
+				stalled = now;
+			else if (now - stalled > Fragments.STALL_NANOS)
+				return;
+			LockSupport.parkNanos(Fragments.PACE_NANOS);
+		}
+	}
+
+	// false only if the socket had no room for it (as in DumbNetworkerDevice).
+	boolean write(DatagramChannel ch, DumbNetworkerDevice.SendState state, NetId sender, NetId receiver, ByteBuffer payload) {
+		ByteBuffer header = state.header;
+		header.clear();
+		sender.write(header, 0);
+		receiver.write(header, NetId.SIZE);
+		state.buffers[1] = payload;
+		try {
+			return ch.write(state.buffers) > 0;
+		} catch (IOException ex) {
+			return true;
+		} finally {
+			state.buffers[1] = null;
+		}
+	}
+
+	DumbNetworkerDevice.SendState sendState() {
+		DumbNetworkerDevice.SendState state = sendStates.get();
+		if (state == null) {
+			state = new DumbNetworkerDevice.SendState(pingNetId);
+			sendStates.set(state);
+		}
+		return state;
+	}
+
+	DatagramChannel activeChannel() {
+		DatagramChannel ch = channel;
+		Thread t = networkThread;
+		if (ch != null && t != null && t.isAlive())
+			return ch;
+		return open() ? channel : null;
+	}
+
+	private synchronized boolean open() {
+		if (channel == null || !networkThread.isAlive()) {
+			if (serverSocketAddr == null || serverSocketAddr.isUnresolved())
+				return false;
+			try {
+				channel = DatagramChannel.open();
+				channel.configureBlocking(false);
+				Fragments.sizeBuffers(channel);
+				channel.connect(serverSocketAddr);
+			} catch (IOException ex) {
+				return false;
+			}
+			networkThread = new Thread(this, "DumbNetworkerHub");
+			networkThread.start();
+		}
+		return true;
+	}
+
+	/*
+	 * The network thread.
+	 */
+
+	TimingWheel timers;
+	long keepalive;
+	long pingDelay;
+	int unanswered;
+
+	// NetIds waiting to go out in REGISTERs, and the buffer they go out in.
+	ArrayDeque<NetId> registerQueue;
+	ByteBuffer registerbuf;
+
+	// The REGISTERs the router hasn't ACKed yet, by nonce, oldest first,
+	//   and the last nonce we used.
+	LinkedHashMap<Long, PendingRegister> pending;
+	long registerNonce;
+
+	// Receive state, as in DumbNetworkerDevice, plus who each datagram of
+	//   the batch is for, and the arrays we hand each of them their part of
+	//   the batch in.
+	ByteBuffer arena;
+	ByteBuffer[] slices;
+	NetId[] senders;
+	DumbNetworker[] receivers;
+	ByteBuffer[] runSlices;
+	NetId[] runSenders;
+	
+	// Reassembly (fragments from any sender to any of us), and the 
+	//   messages completed during a drain(), with who they're for.
+	volatile Fragments fragments; // (for setReassembly())
+	ArrayList<DumbNetworker> wholeReceivers;
+	ArrayList<NetId> wholeSenders;
+	ArrayList<ByteBuffer> wholes;
+
+	@Override
+	public void run() {
+
+		// This works like DumbNetworkerDevice.run(), except that a "ping"
+		//   is registering every NetId we host, a few REGISTER packets per
+		//   tick. Same backoff: 0.25, 0.5, 1 ... seconds until the router
+		//   answers (but a round doesn't start before the last one is 
+		//   out), and then a third of the lease the router gives us. We
+		//   don't skip NetIds that have been sending, though: it's one
+		//   REGISTER per 32 NetIds either way.
+		//
+		// Every REGISTER also carries a nonce, and one that isn't ACKed
+		//   goes out again on its own with that same backoff, LOST_AFTER
+		//   times at most (after that the router is as good as gone, and 
+		//   the ping rounds take over).
+
+		long now = System.currentTimeMillis();
+		timers = new TimingWheel(TIMER_COUNT, DumbNetworkerDevice.TIMER_TICK, now);
+		timers.schedule(PING_TIMER, now);
+		keepalive = DumbNetworkerDevice.KEEPALIVE;
+		pingDelay = DumbNetworkerDevice.FIRST_RETRY;
+		unanswered = 0;
+		registerQueue = new ArrayDeque<>();
+		registerbuf = ByteBuffer.allocateDirect(DumbProtocol.OP_OFFSET + 1 + DumbProtocol.MAX_REGISTER_IDS * NetId.SIZE + 8);
+		pending = new LinkedHashMap<>();
+		registerNonce = now << 20;
+
+		TimingWheel.Handler timerHandler = new TimingWheel.Handler() {
+			@Override
+			public void expired(int timer) {
+				if (timer == PING_TIMER)
+					ping();
+				else if (timer == REGISTER_TIMER)
+					sendRegisters();
+				else if (timer == RETRY_TIMER)
+					retryRegisters();
+			}
+		};
+
+		Selector selector;
+		try {
+			selector = Selector.open();
+			this.selector = selector;
+			channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException ex) {
+			return;
+		}
+
+		arena = ByteBuffer.allocateDirect(DumbNetworkerDevice.RECEIVE_BUFFER_SIZE);
+		slices = new ByteBuffer[MAX_BATCH];
+		for (int i = 0; i < MAX_BATCH; ++i)
+			slices[i] = arena.asReadOnlyBuffer();
+		senders = new NetId[MAX_BATCH];
+		receivers = new DumbNetworker[MAX_BATCH];
+		runSlices = new ByteBuffer[MAX_BATCH];
+		runSenders = new NetId[MAX_BATCH];
+		fragments = new Fragments(reassemblyBudget, reassemblyTimeout);
+		wholeReceivers = new ArrayList<>();
+		wholeSenders = new ArrayList<>();
+		wholes = new ArrayList<>();
+
+		while (channel.isConnected()) {
+			try {
+				// Newcomers go to the front of the line.
+				if (! joined.isEmpty()) {
+					NetId id;
+					while ((id = joined.poll()) != null)
+						registerQueue.addFirst(id);
+					sendRegisters();
+				}
+
+				long timeout = timers.nextExpiry() - System.currentTimeMillis();
+				int ready;
+				if (timeout <= 0)
+					ready = selector.selectNow();
+				else
+					ready = selector.select(timeout);
+
+				if (ready > 0) {
+					selector.selectedKeys().clear();
+					drain();
+				}
+			} catch (IOException ex) {
+			}
+
+			timers.advance(System.currentTimeMillis(), timerHandler);
+		}
+
+		try {
+			this.selector = null;
+			selector.close();
+		} catch (IOException ex) {
+		}
+	}
+
+	// Receive what's waiting, and hand each hosted DumbNetworker its part.
+	private void drain() throws IOException {
+		arena.clear();
+		int count = 0;
+		boolean ponged = false;
+		DumbNetworker previous = null;
+		NetId previousId = null;
+		while (count < MAX_BATCH && arena.remaining() >= MAX_DATAGRAM) {
+			int start = arena.position();
+			if (channel.receive(arena) == null)
+				break;
+			int end = arena.position();
+			if (end - start < HEADER_SIZE) {
+				arena.position(start);
+				continue;
+			}
+
+			// Pongs: the ACKs of our REGISTERs. Only the NetIds of the 
+			//   REGISTER an ACK echoes the nonce of are registered (an 
+			//   older router echoes 0: we take it for the oldest one out).
+			if (pingNetId.equalsAt(arena, start)) {
+				if (end - start >= DumbProtocol.OP_OFFSET + DumbProtocol.ACK_SIZE && arena.get(start + DumbProtocol.OP_OFFSET) == DumbProtocol.ACK) {
+					long nonce = arena.getLong(start + DumbProtocol.OP_OFFSET + 1);
+					PendingRegister acked = null;
+					if (nonce != 0)
+						acked = pending.remove(nonce);
+					else if (! pending.isEmpty())
+						acked = pending.remove(pending.keySet().iterator().next());
+					if (acked != null) {
+						ponged = true;
+						acked.registered();
+						int lease = arena.getInt(start + DumbProtocol.OP_OFFSET + 1 + 8);
+						if (lease > 0)
+							keepalive = Math.max(DumbNetworkerDevice.MIN_KEEPALIVE, lease / 3);
+					}
+				}
+				arena.position(start);
+				continue;
+			}
+
+			// Who is it for? Bursts tend to go to the same NetId, so we
+			//   don't look it up again if it is.
+			DumbNetworker receiver;
+			if (previousId != null && previousId.equalsAt(arena, start + NetId.SIZE)) {
+				receiver = previous;
+			} else {
+				previousId = NetId.read(arena, start + NetId.SIZE);
+				HubDevice device = hosted.get(previousId);
+				previous = receiver = device == null ? null : device.networker;
+			}
+			if (receiver == null) {
+				arena.position(start);
+				continue;
+			}
+
+			NetId last = count > 0 ? senders[count - 1] : null;
+			senders[count] = last != null && last.equalsAt(arena, start) ? last : NetId.read(arena, start);
+			slices[count].limit(end);
+			slices[count].position(start + HEADER_SIZE);
+			if (Fragments.isFragment(slices[count])) {
+				ByteBuffer whole = fragments.add(senders[count], slices[count], System.currentTimeMillis());
+				if (whole != null) {
+					wholeReceivers.add(receiver);
+					wholeSenders.add(senders[count]);
+					wholes.add(whole);
+				}
+				arena.position(start); // it's been copied
+				continue;
+			}
+			receivers[count] = receiver;
+			++count;
+		}
+
+		if (ponged) {
+			timers.schedule(PING_TIMER, System.currentTimeMillis() + keepalive);
+			pingDelay = DumbNetworkerDevice.FIRST_RETRY;
+			unanswered = 0;
+			registration.connected();
+		}
+
+		// Hand out the batch, one run of datagrams for the same networker
+		//   at a time.
+		int i = 0;
+		while (i < count) {
+			DumbNetworker receiver = receivers[i];
+			int n = 0;
+			for (int j = i; j < count && receivers[j] == receiver; ++j, ++n) {
+				runSenders[n] = senders[j];
+				runSlices[n] = slices[j];
+			}
+			receiver.receiveBatch(runSenders, runSlices, n);
+			i += n;
+		}
+		for (i = 0; i < count; ++i)
+			receivers[i] = null; // don't keep killed networkers around
+		
+		// And then the reassembled messages, one by one.
+		for (i = 0; i < wholes.size(); ++i) {
+			runSenders[0] = wholeSenders.get(i);
+			runSlices[0] = wholes.get(i);
+			wholeReceivers.get(i).receiveBatch(runSenders, runSlices, 1);
+		}
+		if (! wholes.isEmpty()) {
+			wholeReceivers.clear();
+			wholeSenders.clear();
+			wholes.clear();
+			runSlices[0] = null;
+		}
+	}
+
+	// The ping timer went off: register everybody again.
+	private void ping() {
+		if (++unanswered > DumbNetworkerDevice.LOST_AFTER)
+			lost();
+		timers.schedule(PING_TIMER, System.currentTimeMillis() + pingDelay);
+		pingDelay = Math.min(pingDelay * 2, DumbNetworkerDevice.MAX_RETRY);
+
+		// If the last round is still going out, let it finish.
+		if (registerQueue.isEmpty()) {
+			registerQueue.addAll(hosted.keySet());
+			sendRegisters();
+		}
+	}
+
+	// Send the next few REGISTERs, and come back next tick if there are
+	//   more.
+	private void sendRegisters() {
+		long now = System.currentTimeMillis();
+		for (int p = 0; p < REGISTERS_PER_TICK && ! registerQueue.isEmpty(); ++p) {
+			NetId[] ids = new NetId[Math.min(registerQueue.size(), DumbProtocol.MAX_REGISTER_IDS)];
+			int n = 0;
+			while (n < ids.length && ! registerQueue.isEmpty()) {
+				NetId id = registerQueue.poll();
+				if (hosted.containsKey(id)) // (not detached meanwhile)
+					ids[n++] = id;
+			}
+			if (n == 0)
+				continue;
+			if (++registerNonce == 0)
+				++registerNonce;
+			PendingRegister register = new PendingRegister(registerNonce, ids, n, now);
+			pending.put(register.nonce, register);
+			writeRegister(register);
+			retryAt(register.due);
+		}
+		if (! registerQueue.isEmpty())
+			timers.schedule(REGISTER_TIMER, now + DumbNetworkerDevice.TIMER_TICK);
+	}
+
+	// The retry timer went off: send the REGISTERs that are due again (a
+	//   few per tick, like sendRegisters()), and forget the ones that went
+	//   unanswered too many times (their NetIds may not be registered any 
+	//   more) or whose NetIds are all gone.
+	private void retryRegisters() {
+		long now = System.currentTimeMillis();
+		long next = Long.MAX_VALUE;
+		int sent = 0;
+		Iterator<PendingRegister> it = pending.values().iterator();
+		while (it.hasNext()) {
+			PendingRegister register = it.next();
+			if (register.due > now) {
+				next = Math.min(next, register.due);
+				continue;
+			}
+			if (sent == REGISTERS_PER_TICK) {
+				next = Math.min(next, now + DumbNetworkerDevice.TIMER_TICK);
+				continue;
+			}
+			if (register.attempts > DumbNetworkerDevice.LOST_AFTER) {
+				register.lost();
+				it.remove();
+				continue;
+			}
+			if (! register.stillHosted()) {
+				it.remove();
+				continue;
+			}
+			register.retried(now);
+			writeRegister(register);
+			++sent;
+			next = Math.min(next, register.due);
+		}
+		if (next != Long.MAX_VALUE)
+			retryAt(next);
+	}
+
+	// Make sure the retry timer goes off by then.
+	private void retryAt(long due) {
+		if (! timers.isScheduled(RETRY_TIMER) || timers.getDeadline(RETRY_TIMER) > due)
+			timers.schedule(RETRY_TIMER, due);
+	}
+
+	private void writeRegister(PendingRegister register) {
+		registerbuf.clear();
+		pingNetId.put(registerbuf); // sender: all of the listed
+		pingNetId.put(registerbuf); // receiver: the router
+		registerbuf.put(DumbProtocol.REGISTER);
+		for (int i = 0; i < register.count; ++i)
+			register.ids[i].put(registerbuf);
+		registerbuf.putLong(register.nonce);
+		registerbuf.flip();
+		try {
+			channel.write(registerbuf);
+		} catch (IOException ex) {
+		}
+	}
+
+	// A REGISTER that's out and not ACKed yet: the NetIds it carries, and
+	//   when it goes out again (the same nonce every time, so a late ACK
+	//   still counts).
+	class PendingRegister {
+
+		final long nonce;
+		final NetId[] ids;
+		final int count;
+		int attempts = 1;
+		long delay = DumbNetworkerDevice.FIRST_RETRY;
+		long due;
+
+		PendingRegister(long nonce, NetId[] ids, int count, long now) {
+			this.nonce = nonce;
+			this.ids = ids;
+			this.count = count;
+			this.due = now + delay;
+		}
+
+		void retried(long now) {
+			++attempts;
+			delay = Math.min(delay * 2, DumbNetworkerDevice.MAX_RETRY);
+			due = now + delay;
+		}
+
+		boolean stillHosted() {
+			for (int i = 0; i < count; ++i)
+				if (hosted.containsKey(ids[i]))
+					return true;
+			return false;
+		}
+
+		// The router ACKed it: its NetIds are registered.
+		void registered() {
+			for (int i = 0; i < count; ++i) {
+				HubDevice device = hosted.get(ids[i]);
+				if (device != null)
+					device.registration.connected();
+			}
+		}
+
+		// We gave up on it.
+		void lost() {
+			for (int i = 0; i < count; ++i) {
+				HubDevice device = hosted.get(ids[i]);
+				if (device != null)
+					device.registration.lost();
+			}
+		}
+	}
+}
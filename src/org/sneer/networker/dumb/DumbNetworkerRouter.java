@@ -1,27 +1,81 @@
 package org.sneer.networker.dumb;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
-import java.util.HashMap;
-import java.util.Map;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.sneer.networker.NetId;
+import org.sneer.networker.util.Histogram;
 
 /**
  * This is a stand-alone router process (notice the main()) for a 
  *   DON (Dumb Overlay Network) instance.
  * 
- * The single command-line argument is the UDP port where it runs. If you 
+ * The first command-line argument is the UDP port where it runs. If you 
  *   don't give a port it runs on 65235.
  * 
+ * The second command-line argument is the number of receive/forward worker
+ *   threads. If you don't give it we run a single worker, and if you give 0
+ *   we run one worker per available core. When the JVM supports SO_REUSEPORT
+ *   every worker gets its own DatagramChannel bound to the same port (the 
+ *   kernel spreads the incoming datagrams among them), otherwise all workers
+ *   share one channel. All workers share the same routing table.
+ * 
+ * After the positional arguments come the options, in --name=value form:
+ *   --stats=SECONDS   How often to log a stats line (default 1800, 0 = never).
+ *   --snapshot=FILE   Keep a snapshot of the routing table in FILE (default:
+ *                     none). It is loaded at startup, so a restarted router
+ *                     can route to the devices it knew right away instead of
+ *                     waiting for each of them to ping it again.
+ *   --snapshot-interval=SECONDS
+ *                     How often to save the snapshot (default 60). It is
+ *                     also saved when the router is closed.
+ *   --cluster=HOST:PORT,HOST:PORT,...
+ *                     Run as one of a cluster of routers, which are all
+ *                     listed here (this one included, each as the address 
+ *                     it sends from). Devices can then be attached to any of
+ *                     them and still reach each other; see RouterCluster.
+ *   --lease=SECONDS   How long the router remembers a device it hasn't
+ *                     heard from (default 1800). Devices are told in every
+ *                     pong and ping every third of it, so a shorter lease
+ *                     means a smaller routing table and more pings.
+ *   --limit-address=RATE[:BURST]
+ *                     Drop packets from any source IP address that sends 
+ *                     more than RATE packets per second on average, or more
+ *                     than BURST (default: RATE) in a row. Default: no limit.
+ *   --limit-netid=RATE[:BURST]
+ *                     Same, per sender NetId. Default: no limit.
+ *   --limit-slots=N   How many sources the limiters keep track of (default
+ *                     65536). This bounds their memory (17 bytes per slot).
+ *                     Sources that don't fit take over the slots of the 
+ *                     ones idle the longest, buckets and all: one that gets
+ *                     a slot that is still draining can be limited more
+ *                     strictly than its own traffic calls for, until the
+ *                     bucket drains. More slots make that rarer.
+ *                     The limits are applied before anything else is done
+ *                     with a packet, and never to the other routers of a 
+ *                     cluster.
+ * 
+ * The router is also a JMX MBean (see DumbNetworkerRouterMBean), so all the 
+ *   numbers in the stats line and a few more are available live through 
+ *   jconsole & friends.
+ * 
  * The router requires the client devices to send packets to someone every now
  *   and then so that they remain in the routers' routing table.
  * 
- * The router should probably forget about peers after ... 30 minutes without 
- *   receiving anything from them. This probably means we want the devices 
- *   'pinging' the router every 10 minutes so they remain reachable if the
- *   router can get at least one out of every three ping packets.
+ * The router forgets about peers exactly one lease (30 minutes unless 
+ *   --lease says otherwise) after it last received anything from them. The
+ *   lease goes out with every pong, and devices ping every third of it, so
+ *   they remain reachable if the router can get at least one out of every 
+ *   three ping packets. Devices that keep sending don't need to ping.
  * 
  * There is a special "ping" message that Devices send to the Router: it is 
  *   an empty message with the null (all-zeroes) NetId as receiver. What this
@@ -35,139 +89,819 @@ import org.sneer.networker.NetId;
  *   things to it from now on.
  * 
  */
-public class DumbNetworkerRouter {
+public class DumbNetworkerRouter implements DumbNetworkerRouterMBean {
 	
 	// Default UDP port for the router
 	public static final int DEFAULT_UDP_PORT = 65235;
 	
-	// When a Device sends to this address, it means a ping to the router,
-	//   not an actual packet to be routed. 
-	// When a Device receives from this address, it means the router is 
-	//   acknowledging a ping, not a packet being routed from another 
-	//   Device.
-	private static final NetId pingNetId = new NetId();
-	
 	public static void main(String[] args) throws Exception {
-		int port = DEFAULT_UDP_PORT;
-		if (args.length > 0) {
-			port = Integer.valueOf(args[0]);
-			if (port < 0)
-				port = 0;
-			else if (port > 65535)
-				port = 65535;
+		Config config = new Config();
+		int positional = 0;
+		for (String arg : args) {
+			if (arg.startsWith("--")) {
+				int eq = arg.indexOf('=');
+				String name = eq < 0 ? arg.substring(2) : arg.substring(2, eq);
+				String value = eq < 0 ? "" : arg.substring(eq + 1);
+				if (! config.setOption(name, value)) {
+					System.err.println("Unknown option: " + arg);
+					System.exit(1);
+				}
+			} else if (positional == 0) {
+				++positional;
+				int port = Integer.valueOf(arg);
+				if (port < 0)
+					port = 0;
+				else if (port > 65535)
+					port = 65535;
+				config.port = port;
+			} else if (positional == 1) {
+				++positional;
+				int workers = Integer.valueOf(arg);
+				if (workers <= 0)
+					workers = Runtime.getRuntime().availableProcessors();
+				config.workers = workers;
+			}
+		}
+		new DumbNetworkerRouter(config).join();
+	}
+	
+	/**
+	 * Everything that can be tweaked about a router. main() fills this in 
+	 *   from the command line.
+	 */
+	public static class Config {
+		
+		// UDP port to bind to (0 = any).
+		public int port = DEFAULT_UDP_PORT;
+		
+		// Number of receive/forward worker threads.
+		public int workers = 1;
+		
+		// How often to log a stats line, in milliseconds (0 = never).
+		public long statsInterval = 30 * 60 * 1000;
+		
+		// Routing table snapshot file (null = no snapshots).
+		public File snapshotFile = null;
+		
+		// How often to save the snapshot, in milliseconds.
+		public long snapshotInterval = 60 * 1000;
+		
+		// All the routers of our cluster, us included (null = not clustered).
+		public InetSocketAddress[] cluster = null;
+		
+		// Per source address and per sender NetId packet rate limits, in
+		//   packets per second (0 = no limit), and the burst they allow.
+		public double addressRate = 0;
+		public int addressBurst = 0;
+		public double netIdRate = 0;
+		public int netIdBurst = 0;
+		
+		// Sources tracked by each rate limiter.
+		public int limitSlots = 65536;
+		
+		// How long we remember a device we haven't heard from, in 
+		//   milliseconds.
+		public long lease = ENTRY_TTL;
+		
+		/**
+		 * Set one of the --name=value command-line options.
+		 * @param name The option name (without the dashes).
+		 * @param value The option value.
+		 * @return false if there's no such option.
+		 */
+		public boolean setOption(String name, String value) {
+			switch (name) {
+				case "stats":
+					statsInterval = Long.valueOf(value) * 1000;
+					return true;
+				case "snapshot":
+					snapshotFile = value.isEmpty() ? null : new File(value);
+					return true;
+				case "snapshot-interval":
+					snapshotInterval = Math.max(1, Long.valueOf(value)) * 1000;
+					return true;
+				case "cluster":
+					cluster = parseAddresses(value);
+					return true;
+				case "lease":
+					lease = Math.max(1, Math.min(Long.valueOf(value), Integer.MAX_VALUE / 1000)) * 1000;
+					return true;
+				case "limit-address":
+					addressRate = parseRate(value);
+					addressBurst = parseBurst(value);
+					return true;
+				case "limit-netid":
+					netIdRate = parseRate(value);
+					netIdBurst = parseBurst(value);
+					return true;
+				case "limit-slots":
+					limitSlots = Integer.valueOf(value);
+					return true;
+				default:
+					return false;
+			}
+		}
+		
+		// "RATE[:BURST]"
+		static double parseRate(String value) {
+			int colon = value.indexOf(':');
+			return Double.valueOf(colon < 0 ? value : value.substring(0, colon));
+		}
+		
+		static int parseBurst(String value) {
+			int colon = value.indexOf(':');
+			return colon < 0 ? (int)Math.ceil(parseRate(value)) : Integer.valueOf(value.substring(colon + 1));
+		}
+		
+		// "host:port,host:port,..."
+		static InetSocketAddress[] parseAddresses(String value) {
+			String[] items = value.split(",");
+			InetSocketAddress[] addresses = new InetSocketAddress[items.length];
+			for (int i = 0; i < items.length; ++i) {
+				String item = items[i].trim();
+				int colon = item.lastIndexOf(':');
+				if (colon < 0)
+					throw new IllegalArgumentException("Not a host:port: " + item);
+				addresses[i] = new InetSocketAddress(item.substring(0, colon), Integer.valueOf(item.substring(colon + 1)));
+			}
+			return addresses;
 		}
-		new DumbNetworkerRouter(port);
 	}
 	
 	// =======================================================================
+
+	// How long we remember a peer we haven't heard from, by default (see
+	//   Config.lease).
+	public static final long ENTRY_TTL = 30 * 60 * 1000;
 	
-	// The two routing tables.
-	// Every 30 minutes we set one of them to be the new primary table, 
-	//   at which point that table is erased.
-	// Receiving any packet adds or re-adds the peer to the current primary 
-	//   table.
-	// Lookup is always made on both tables.
-	Map<NetId, SocketAddress>[] routingTable = new HashMap[2];
+	// How often the janitor thread wakes up (advancing the lease timers and
+	//   refreshing the rates).
+	static final long JANITOR_INTERVAL = RoutingTable.LEASE_TICK;
+
+	// The routing table, shared by all workers.
+	// Receiving any packet adds or re-adds the peer to the table, and it is
+	//   forgotten exactly one lease after the last packet we got from it.
+	final RoutingTable routingTable;
+	
+	final Config config;
+	
+	// Our cluster, or null if we're a stand-alone router.
+	final RouterCluster cluster;
+	
+	// Rate limiters (null = no limit).
+	final RateLimiter addressLimiter;
+	final RateLimiter netIdLimiter;
+	
+	// Fun statistics: one RouterStats per worker.
+	final RouterStats[] stats;
 	
-	// Primary and secondary tables (either 0 or 1)
-	int prim = 0;
-	int sec = 1;
+	// Rates over the last janitor interval, computed by the janitor.
+	volatile double packetsInRate;
+	volatile double bytesInRate;
+	volatile double packetsOutRate;
+	volatile double bytesOutRate;
 	
-	// Time until primary routing table pointer changes.
-	long lastPrimFlipTime = System.currentTimeMillis();
+	// Our name in the platform MBeanServer (null if registration failed).
+	ObjectName mbeanName;
 	
-	// Fun statistics
-	long routed;
+	// One channel per worker with SO_REUSEPORT, or the same channel repeated
+	//   for every worker if we have to share.
+	final DatagramChannel[] channels;
+	final Thread[] workerThreads;
+	
+	// Does the housekeeping (expiry sweeps, stats) off the forwarding path.
+	final Thread janitorThread;
 
-	// The router.
-	public DumbNetworkerRouter(int port) throws Exception {
+	// The router with a single worker.
+	public DumbNetworkerRouter(int port) throws IOException {
+		this(port, 1);
+	}
+	
+	// The router with the default configuration but for port and workers.
+	public DumbNetworkerRouter(int port, int workers) throws IOException {
+		this(newConfig(port, workers));
+	}
+	
+	private static Config newConfig(int port, int workers) {
+		Config config = new Config();
+		config.port = port;
+		config.workers = workers;
+		return config;
+	}
+	
+	// The router. This opens the socket(s) and starts the worker threads, 
+	//   then returns; call join() to block until the router is closed.
+	public DumbNetworkerRouter(Config config) throws IOException {
 		
-		// just do the reading loop in the ctor with foreverblock.
-		// this doesn't do anything while there's no input. it can
-		//  forget about peers after the unblocking occurs.
+		this.config = config;
+		int port = config.port;
+		int workers = Math.max(1, config.workers);
 		
-		ByteBuffer in = ByteBuffer.allocate(65536);
-		ByteBuffer pingOut = ByteBuffer.allocate(64);
+		stats = new RouterStats[workers];
+		for (int i = 0; i < workers; ++i)
+			stats[i] = new RouterStats();
 		
-		routingTable[0] = new HashMap();
-		routingTable[1] = new HashMap();
+		routingTable = new RoutingTable(workers, config.lease);
+		addressLimiter = config.addressRate <= 0 ? null : new RateLimiter(config.limitSlots, config.addressRate, config.addressBurst);
+		netIdLimiter = config.netIdRate <= 0 ? null : new RateLimiter(config.limitSlots, config.netIdRate, config.netIdBurst);
+		
+		// Warm restart. A bad snapshot is no reason not to route.
+		if (config.snapshotFile != null) {
+			try {
+				int restored = RoutingTableSnapshot.load(routingTable, config.snapshotFile, System.currentTimeMillis());
+				System.out.println("DumbNetworkerRouter: restored " + restored + " routing table entries from " + config.snapshotFile);
+			} catch (IOException ex) {
+				System.err.println("DumbNetworkerRouter: can't load snapshot: " + ex);
+			}
+		}
 		
 		InetSocketAddress isa = new InetSocketAddress(port);
-		DatagramChannel channel = DatagramChannel.open();
-		channel.bind(isa);
+		channels = new DatagramChannel[workers];
+		workerThreads = new Thread[workers];
+		
+		// Try to give every worker its own channel. If the first one can't 
+		//   do SO_REUSEPORT then it is the only channel and everyone shares it.
+		SocketOption<Boolean> reusePort = getReusePortOption();
+		channels[0] = DatagramChannel.open();
+		Fragments.sizeBuffers(channels[0]); // fragment bursts pass through
+		boolean sharded = workers > 1 && reusePort != null 
+				&& channels[0].supportedOptions().contains(reusePort);
+		if (sharded)
+			channels[0].setOption(reusePort, true);
+		channels[0].bind(isa);
+		
+		// If we were given port 0, all the other workers must bind to 
+		//   whatever port the kernel picked for the first one.
+		isa = new InetSocketAddress(((InetSocketAddress)channels[0].getLocalAddress()).getPort());
+		
+		try {
+			cluster = config.cluster == null ? null : new RouterCluster(config.cluster, isa.getPort(), workers, config.lease);
+		} catch (IOException ex) {
+			channels[0].close();
+			throw ex;
+		}
+		
+		for (int i = 1; i < workers; ++i) {
+			if (sharded) {
+				channels[i] = DatagramChannel.open();
+				Fragments.sizeBuffers(channels[i]);
+				channels[i].setOption(reusePort, true);
+				channels[i].bind(isa);
+			} else {
+				channels[i] = channels[0];
+			}
+		}
+		
+		for (int i = 0; i < workers; ++i) {
+			workerThreads[i] = new Thread(new Worker(channels[i], stats[i]), "DumbNetworkerRouter-" + i);
+			workerThreads[i].start();
+		}
+		
+		janitorThread = new Thread(new Janitor(), "DumbNetworkerRouter-janitor");
+		janitorThread.setDaemon(true);
+		janitorThread.start();
+		
+		// Show up in jconsole. Not being able to is no reason not to route.
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("org.sneer.networker.dumb:type=DumbNetworkerRouter,port=" + getPort());
+			server.registerMBean(this, name);
+			mbeanName = name;
+		} catch (JMException ex) {
+			System.err.println("DumbNetworkerRouter: JMX registration failed: " + ex);
+		}
+	}
+	
+	/**
+	 * Get the UDP port the router is bound to (useful if you gave it 0).
+	 * @return The local UDP port, or -1 if the router has been closed.
+	 */
+	@Override
+	public int getPort() {
+		try {
+			return ((InetSocketAddress)channels[0].getLocalAddress()).getPort();
+		} catch (IOException ex) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Block until all worker threads are done (i.e. forever, or until 
+	 *   close() is called).
+	 * @throws InterruptedException If the calling thread is interrupted.
+	 */
+	public void join() throws InterruptedException {
+		for (Thread t : workerThreads)
+			t.join();
+		janitorThread.join();
+	}
+	
+	/**
+	 * Close all channels, which makes all worker threads quit.
+	 */
+	public void close() {
+		for (DatagramChannel channel : channels) {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+			}
+		}
+		janitorThread.interrupt();
+		if (mbeanName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+			} catch (JMException ex) {
+			}
+			mbeanName = null;
+		}
+	}
+	
+	/*
+	 * DumbNetworkerRouterMBean
+	 */
+	
+	// Sum of one counter over all workers.
+	long total(int counter) {
+		long total = 0;
+		for (RouterStats s : stats)
+			total += s.get(counter);
+		return total;
+	}
+	
+	@Override
+	public int getWorkers() { return stats.length; }
+	@Override
+	public long getPacketsIn() { return total(RouterStats.PACKETS_IN); }
+	@Override
+	public long getBytesIn() { return total(RouterStats.BYTES_IN); }
+	@Override
+	public long getPacketsOut() { return total(RouterStats.PACKETS_OUT); }
+	@Override
+	public long getBytesOut() { return total(RouterStats.BYTES_OUT); }
+	@Override
+	public long getPings() { return total(RouterStats.PINGS); }
+	@Override
+	public long getRegistrations() { return total(RouterStats.REGISTRATIONS); }
+	@Override
+	public long getIntroductions() { return total(RouterStats.INTRODUCTIONS); }
+	@Override
+	public long getRouted() { return total(RouterStats.ROUTED); }
+	@Override
+	public long getDroppedUnknownDestination() { return total(RouterStats.DROPPED_UNKNOWN); }
+	@Override
+	public long getDroppedShortPackets() { return total(RouterStats.DROPPED_SHORT); }
+	@Override
+	public long getDroppedRateLimitedAddress() { return total(RouterStats.DROPPED_LIMIT_ADDRESS); }
+	@Override
+	public long getDroppedRateLimitedNetId() { return total(RouterStats.DROPPED_LIMIT_NETID); }
+	
+	@Override
+	public double getPacketsInPerSecond() { return packetsInRate; }
+	@Override
+	public double getBytesInPerSecond() { return bytesInRate; }
+	@Override
+	public double getPacketsOutPerSecond() { return packetsOutRate; }
+	@Override
+	public double getBytesOutPerSecond() { return bytesOutRate; }
+	
+	@Override
+	public int getRoutingTableSize() { return routingTable.size(); }
+	@Override
+	public long getRoutingTableInserts() { return routingTable.getInserts(); }
+	@Override
+	public long getRoutingTableAddressChanges() { return routingTable.getAddressChanges(); }
+	@Override
+	public long getRoutingTableExpirations() { return routingTable.getExpirations(); }
+	
+	@Override
+	public int getClusterMembers() { return cluster == null ? 0 : cluster.members.length; }
+	@Override
+	public int getClusterMembersUp() { return cluster == null ? 0 : cluster.getMembersUp(); }
+	@Override
+	public int getClusterDirectorySize() { return cluster == null ? 0 : cluster.directory.size(); }
+	@Override
+	public long getClusterForwardedOut() { return total(RouterStats.CLUSTER_OUT); }
+	@Override
+	public long getClusterForwardedIn() { return total(RouterStats.CLUSTER_IN); }
+	
+	@Override
+	public long[] getForwardingLatencyHistogram() {
+		long[] counts = new long[Histogram.BUCKETS];
+		for (RouterStats s : stats)
+			s.latency.addTo(counts);
+		return counts;
+	}
+	
+	@Override
+	public double getForwardingLatencyP50() { return latencyPercentile(50); }
+	@Override
+	public double getForwardingLatencyP99() { return latencyPercentile(99); }
+	@Override
+	public double getForwardingLatencyP999() { return latencyPercentile(99.9); }
+	@Override
+	public double getForwardingLatencyMax() { return latencyPercentile(100); }
+	
+	double latencyPercentile(double percentile) {
+		return Histogram.percentile(getForwardingLatencyHistogram(), percentile) / 1000.0;
+	}
+	
+	@Override
+	public String getStatsLine() {
+		long[] latency = getForwardingLatencyHistogram();
+		String line = String.format("Entries: %d (+%d ~%d -%d), In: %d pkts %d B (%.0f pkt/s %.0f B/s), "
+				+ "Out: %d pkts %d B (%.0f pkt/s %.0f B/s), Pings: %d (%d registrations, %d introductions), Routed: %d, "
+				+ "Dropped: %d unknown %d short %d+%d limited, Latency us: p50 %.1f p99 %.1f p99.9 %.1f max %.1f",
+				getRoutingTableSize(), getRoutingTableInserts(), getRoutingTableAddressChanges(), getRoutingTableExpirations(),
+				getPacketsIn(), getBytesIn(), packetsInRate, bytesInRate,
+				getPacketsOut(), getBytesOut(), packetsOutRate, bytesOutRate,
+				getPings(), getRegistrations(), getIntroductions(), getRouted(), getDroppedUnknownDestination(), getDroppedShortPackets(),
+				getDroppedRateLimitedAddress(), getDroppedRateLimitedNetId(),
+				Histogram.percentile(latency, 50) / 1000.0, Histogram.percentile(latency, 99) / 1000.0,
+				Histogram.percentile(latency, 99.9) / 1000.0, Histogram.percentile(latency, 100) / 1000.0);
+		if (cluster != null) {
+			line += String.format(", Cluster: %d/%d up, directory %d, forwarded %d out %d in",
+					getClusterMembersUp(), getClusterMembers(), getClusterDirectorySize(),
+					getClusterForwardedOut(), getClusterForwardedIn());
+		}
+		return line;
+	}
+	
+	// SO_REUSEPORT only showed up in StandardSocketOptions in Java 9, so we 
+	//   have to go fish for it.
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> getReusePortOption() {
+		try {
+			return (SocketOption<Boolean>)StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (Exception ex) {
+			return null;
+		}
+	}
+	
+	// One receive/forward loop. There are as many of these as there are 
+	//   worker threads.
+	// The loop is allocation-free in the steady state: it receives into a 
+	//   direct buffer, parses and hashes the header in place through reusable
+	//   RouterKeys, forwards that very same buffer and only touches the 
+	//   routing table for writing when a sender is new or has moved.
+	class Worker implements Runnable {
+		
+		final DatagramChannel channel;
+		final RouterStats stats;
+		
+		Worker(DatagramChannel channel, RouterStats stats) {
+			this.channel = channel;
+			this.stats = stats;
+		}
 		
-		while (channel.isOpen()) {
+		@Override
+		public void run() {
+			
+			// just do the reading loop with foreverblock.
+			// this doesn't do anything while there's no input. it can
+			//  forget about peers after the unblocking occurs.
+			
+			ByteBuffer in = ByteBuffer.allocateDirect(65536);
+			ByteBuffer pingOut = ByteBuffer.allocateDirect(DumbProtocol.OP_OFFSET + DumbProtocol.ACK_SIZE);
+			
+			// Where device packets get wrapped to go to another router.
+			ByteBuffer frameOut = cluster == null ? null : ByteBuffer.allocateDirect(65536 + RouterCluster.FRAME_HEADER);
+			
+			// The header fields of the packet being routed.
+			RouterKey sender = new RouterKey();
+			RouterKey receiver = new RouterKey();
 			
-			// Wait for something, blocking forever
-			in.clear();
-			SocketAddress senderAddress = channel.receive(in);
+			// The NetIds listed in a REGISTER (or to INTRODUCE).
+			RouterKey registered = new RouterKey();
 			
-			// If we received a packet, try to route it by checking
-			//   whether we have the destination in any of our 
-			//   routing tables.
-			boolean validPacket = false;
-			NetId sender = new NetId();
-			NetId receiver = new NetId();
-			if (senderAddress != null) {
-				in.rewind();
-				if (in.remaining() >= 64) {
+			// Where introductions get written.
+			ByteBuffer peerOut = ByteBuffer.allocateDirect(DumbProtocol.OP_OFFSET + DumbProtocol.PEER_SIZE);
+			
+			while (channel.isOpen()) {
+				
+				// Wait for something, blocking forever
+				in.clear();
+				SocketAddress senderAddress;
+				try {
+					senderAddress = channel.receive(in);
+				} catch (IOException ex) {
+					// Closed (or closing); the loop condition will tell.
+					continue;
+				}
+				in.flip();
+				
+				long receivedNanos = System.nanoTime();
+				long now = System.currentTimeMillis();
+				
+				if (senderAddress == null)
+					continue;
+				int length = in.remaining();
+				stats.increment(RouterStats.PACKETS_IN);
+				stats.add(RouterStats.BYTES_IN, length);
+				
+				// Frames from the other routers of our cluster are a 
+				//   different business altogether.
+				if (cluster != null) {
+					int member = cluster.memberIndex(senderAddress);
+					if (member >= 0) {
+						clusterFrame(member, in, receiver, now, receivedNanos);
+						continue;
+					}
+				}
+				
+				// Throttle whoever is sending too much, before spending 
+				//   anything else on it.
+				if (addressLimiter != null && ! allowAddress((InetSocketAddress)senderAddress, receivedNanos)) {
+					stats.increment(RouterStats.DROPPED_LIMIT_ADDRESS);
+					continue;
+				}
+				
+				// If we received a packet, try to route it by checking
+				//   whether we have the destination in our routing 
+				//   table.
+				boolean validPacket = false;
+				if (length < 64) {
+					stats.increment(RouterStats.DROPPED_SHORT);
+				} else {
 					validPacket = true;
-					++routed;
-					in.get(sender.getBytes());
-					in.get(receiver.getBytes());
-					in.rewind();
-					
-					// special case: if the receiver is all zeroes, this is 
-					//   a network control packet: the device is pinging the
-					//   central router, and we ping back sending another
-					//   packet with the sender being all zeroes.
-					if (receiver.equals(pingNetId)) {
-						
-						// Device pinging the Router.
-						
-						// ping back and that's it.
-						pingOut.clear();
-						pingOut.put(pingNetId.getBytes()); // sender = "Pong!"
-						pingOut.put(sender.getBytes()); // receiver = the Device that pinged us
-						pingOut.flip();
-						channel.send(pingOut, senderAddress);
-						
-					} else {
-						
-						// actual Device-to-Device packet that we have to
-						//  route for them.
+					sender.load(in, 0);
+					receiver.load(in, 32);
 					
-						// look it up first in the primary, since if there's
-						//   an entry on both then the secondary may be out of date.
-						SocketAddress receiverAddress = routingTable[prim].get(receiver);
-						if (receiverAddress == null)
-							receiverAddress = routingTable[sec].get(receiver);
-						// if we found an address, route to it
-						if (receiverAddress != null)
-							channel.send(in, receiverAddress);
+					// (The all-zeroes sender is a hub registering for many 
+					//   NetIds; its address was limited already.)
+					if (netIdLimiter != null && ! sender.isZero() && ! netIdLimiter.allow(sender.tag, sender.hash, receivedNanos)) {
+						stats.increment(RouterStats.DROPPED_LIMIT_NETID);
+						continue;
+					}
+
+					try {
+						// special case: if the receiver is all zeroes, this is 
+						//   a network control packet: the device is pinging the
+						//   central router, and we ping back sending another
+						//   packet with the sender being all zeroes.
+						if (receiver.isZero()) {
+
+							// Device pinging the Router.
+							
+							// Maybe with a list of NetIds to register.
+							byte op = length > DumbProtocol.OP_OFFSET ? in.get(DumbProtocol.OP_OFFSET) : 0;
+							if (op == DumbProtocol.REGISTER)
+								register(in, registered, (InetSocketAddress)senderAddress, now);
+							
+							// Or wanting to meet another device.
+							if (op == DumbProtocol.INTRODUCE && length >= DumbProtocol.OP_OFFSET + DumbProtocol.INTRODUCE_SIZE)
+								introduce(in, sender, registered, (InetSocketAddress)senderAddress, peerOut, now);
+
+							// ping back and that's it.
+							pingOut.clear();
+							receiver.put(pingOut); // sender = "Pong!" (all zeroes)
+							sender.put(pingOut); // receiver = the Device that pinged us
+							
+							// A BIND wants its nonce back, so the device 
+							//   knows it's registered, and so does a 
+							//   REGISTER that ends in one (the 8 bytes 
+							//   after the last whole NetId). Everybody gets
+							//   to know how long their lease is.
+							long nonce = 0;
+							if (op == DumbProtocol.BIND && length >= DumbProtocol.OP_OFFSET + DumbProtocol.BIND_SIZE)
+								nonce = in.getLong(DumbProtocol.OP_OFFSET + 1);
+							else if (op == DumbProtocol.REGISTER && length > DumbProtocol.OP_OFFSET + 1 && (length - DumbProtocol.OP_OFFSET - 1) % NetId.SIZE == 8)
+								nonce = in.getLong(length - 8);
+							pingOut.put(DumbProtocol.ACK).putLong(nonce).putInt((int)config.lease);
+							pingOut.flip();
+							int pongLength = pingOut.remaining();
+							stats.increment(RouterStats.PINGS);
+							if (channel.send(pingOut, senderAddress) > 0) {
+								stats.increment(RouterStats.PACKETS_OUT);
+								stats.add(RouterStats.BYTES_OUT, pongLength);
+							}
+
+						} else {
+
+							// actual Device-to-Device packet that we have to
+							//  route for them.
+
+							// look it up
+							SocketAddress receiverAddress = routingTable.lookup(receiver, now);
+							// if we found an address, route to it: the 
+							//   buffer is still positioned at the start of 
+							//   the header.
+							if (receiverAddress == null) {
+								// Not one of ours. In a cluster, somebody 
+								//   else may know where it is.
+								InetSocketAddress nextHop = cluster == null ? null : cluster.nextHop(receiver, now);
+								if (nextHop == null) {
+									stats.increment(RouterStats.DROPPED_UNKNOWN);
+								} else {
+									frameOut.clear();
+									frameOut.put(RouterCluster.FORWARD).put((byte)0).put(in).flip();
+									forward(frameOut, nextHop, receivedNanos);
+								}
+							} else {
+								stats.increment(RouterStats.ROUTED);
+								if (channel.send(in, receiverAddress) > 0) {
+									stats.latency.record(System.nanoTime() - receivedNanos);
+									stats.increment(RouterStats.PACKETS_OUT);
+									stats.add(RouterStats.BYTES_OUT, length);
+								}
+							}
+						}
+					} catch (IOException ex) {
+						// Couldn't send it. Datagrams get lost; whatever.
 					}
 				}
+				
+				// If we received a packet, refresh its sender in
+				//   the routing table. The all-zeroes NetId is ours, 
+				//   so nobody gets to register it.
+				if (validPacket && ! sender.isZero()) {
+					if (routingTable.refresh(sender, (InetSocketAddress)senderAddress, now) && cluster != null)
+						cluster.announce(sender.copy());
+				}
 			}
-			
-			// Check for routing table flip every half hour
-			long now = System.currentTimeMillis();
-			if (now > lastPrimFlipTime + 30 * 60 * 1000) {
-				lastPrimFlipTime = now; // schedule new swap
+		}
+		
+		// Register every NetId listed in a REGISTER at the address it came
+		//   from, the same as if each had pinged us.
+		void register(ByteBuffer in, RouterKey key, InetSocketAddress address, long now) {
+			for (int off = DumbProtocol.OP_OFFSET + 1; off + NetId.SIZE <= in.limit(); off += NetId.SIZE) {
+				key.load(in, off);
+				if (key.isZero())
+					continue;
+				stats.increment(RouterStats.REGISTRATIONS);
+				if (routingTable.refresh(key, address, now) && cluster != null)
+					cluster.announce(key.copy());
+			}
+		}
+		
+		// Tell two devices each other's addresses, so they can try to talk
+		//   directly (see PeerPaths). Only for devices of ours: in a 
+		//   cluster, the ones attached elsewhere just keep being relayed.
+		void introduce(ByteBuffer in, RouterKey sender, RouterKey peer, InetSocketAddress senderAddress, ByteBuffer out, long now) throws IOException {
+			peer.load(in, DumbProtocol.OP_OFFSET + 1);
+			if (peer.isZero() || sender.isZero())
+				return;
+			InetSocketAddress peerAddress = routingTable.lookup(peer, now);
+			if (peerAddress == null)
+				return;
+			stats.increment(RouterStats.INTRODUCTIONS);
+			sendPeer(out, sender, peer, peerAddress, senderAddress);
+			sendPeer(out, peer, sender, senderAddress, peerAddress);
+		}
+		
+		// A PEER: to receiver at address, about peer at peerAddress.
+		void sendPeer(ByteBuffer out, RouterKey receiver, RouterKey peer, InetSocketAddress peerAddress, InetSocketAddress address) throws IOException {
+			out.clear();
+			DumbProtocol.ROUTER.put(out); // sender = the router (all zeroes)
+			receiver.put(out);
+			out.put(DumbProtocol.PEER);
+			peer.put(out);
+			DumbProtocol.putAddress(out, peerAddress);
+			out.flip();
+			int length = out.remaining();
+			if (channel.send(out, address) > 0) {
+				stats.increment(RouterStats.PACKETS_OUT);
+				stats.add(RouterStats.BYTES_OUT, length);
+			}
+		}
+		
+		// Source addresses are limited by IP (a source that wants more can
+		//   easily get more ports). Inet4Address.hashCode() is the address
+		//   itself; for IPv6 the hash is all we use, collisions just share
+		//   a bucket.
+		boolean allowAddress(InetSocketAddress address, long nowNanos) {
+			int hash = address.getAddress().hashCode();
+			return addressLimiter.allow(hash, hash, nowNanos);
+		}
+		
+		// Handle a frame from another router of the cluster.
+		void clusterFrame(int member, ByteBuffer in, RouterKey key, long now, long receivedNanos) {
+			cluster.heard(member, now);
+			if (in.remaining() < RouterCluster.FRAME_HEADER) {
+				stats.increment(RouterStats.DROPPED_SHORT);
+				return;
+			}
+			switch (in.get(0)) {
+				case RouterCluster.REGISTER:
+					// NetIds living at that router; we own them.
+					for (int off = RouterCluster.FRAME_HEADER; off + 32 <= in.limit(); off += 32) {
+						key.load(in, off);
+						if (! key.isZero())
+							cluster.directory.refresh(key, cluster.members[member], now);
+					}
+					break;
+				case RouterCluster.FORWARD:
+					if (in.remaining() < RouterCluster.FRAME_HEADER + 64) {
+						stats.increment(RouterStats.DROPPED_SHORT);
+						break;
+					}
+					stats.increment(RouterStats.CLUSTER_IN);
+					key.load(in, RouterCluster.FRAME_HEADER + 32);
+					try {
+						SocketAddress receiverAddress = routingTable.lookup(key, now);
+						if (receiverAddress != null) {
+							// It's one of ours: unwrap and deliver.
+							stats.increment(RouterStats.ROUTED);
+							in.position(RouterCluster.FRAME_HEADER);
+							int length = in.remaining();
+							if (channel.send(in, receiverAddress) > 0) {
+								stats.latency.record(System.nanoTime() - receivedNanos);
+								stats.increment(RouterStats.PACKETS_OUT);
+								stats.add(RouterStats.BYTES_OUT, length);
+							}
+							break;
+						}
+						// We're its owner (or the ring just changed): pass
+						//   it on to its home router, unless it's been 
+						//   around too much already.
+						int hops = in.get(1) + 1;
+						InetSocketAddress nextHop = cluster.nextHop(key, now);
+						if (hops > RouterCluster.MAX_HOPS || nextHop == null || nextHop.equals(cluster.members[member])) {
+							stats.increment(RouterStats.DROPPED_UNKNOWN);
+							break;
+						}
+						in.put(1, (byte)hops);
+						forward(in, nextHop, receivedNanos);
+					} catch (IOException ex) {
+						// Couldn't send it. Datagrams get lost; whatever.
+					}
+					break;
+				default:
+					// HELLO, or something from a newer version.
+					break;
+			}
+		}
+		
+		// Send a FORWARD frame to another router.
+		void forward(ByteBuffer frame, InetSocketAddress to, long receivedNanos) throws IOException {
+			int length = frame.remaining();
+			stats.increment(RouterStats.CLUSTER_OUT);
+			if (channel.send(frame, to) > 0) {
+				stats.latency.record(System.nanoTime() - receivedNanos);
+				stats.increment(RouterStats.PACKETS_OUT);
+				stats.add(RouterStats.BYTES_OUT, length);
+			}
+		}
+	}
+	
+	// Runs the routing table's lease timers, refreshes the rates and logs 
+	//   the fun statistics every now and then.
+	class Janitor implements Runnable {
+		
+		@Override
+		public void run() {
+			long lastTime = System.currentTimeMillis();
+			long nextStatsTime = lastTime + config.statsInterval;
+			long nextSnapshotTime = lastTime + config.snapshotInterval;
+			long lastPacketsIn = 0, lastBytesIn = 0, lastPacketsOut = 0, lastBytesOut = 0;
+			while (channels[0].isOpen()) {
+				try {
+					Thread.sleep(JANITOR_INTERVAL);
+				} catch (InterruptedException ex) {
+					// close() wakes us up so we notice the channel is closed.
+				}
+				long now = System.currentTimeMillis();
+				routingTable.expire(now);
+				if (cluster != null)
+					cluster.tick(routingTable, channels[0], now);
 				
-				int temp = prim; // swap primary and secondary indices
-				prim = sec;
-				sec = temp;
-
-				System.out.println("Entries: " + (routingTable[0].size() + routingTable[1].size()) + ", Packets: " + routed);
+				double secs = Math.max(1, now - lastTime) / 1000.0;
+				long packetsIn = getPacketsIn(), bytesIn = getBytesIn();
+				long packetsOut = getPacketsOut(), bytesOut = getBytesOut();
+				packetsInRate = (packetsIn - lastPacketsIn) / secs;
+				bytesInRate = (bytesIn - lastBytesIn) / secs;
+				packetsOutRate = (packetsOut - lastPacketsOut) / secs;
+				bytesOutRate = (bytesOut - lastBytesOut) / secs;
+				lastPacketsIn = packetsIn;
+				lastBytesIn = bytesIn;
+				lastPacketsOut = packetsOut;
+				lastBytesOut = bytesOut;
+				lastTime = now;
 				
-				routingTable[prim] = new HashMap(); // wipe the new primary
+				if (config.statsInterval > 0 && now > nextStatsTime) {
+					nextStatsTime = now + config.statsInterval;
+					System.out.println(getStatsLine());
+				}
+				
+				if (config.snapshotFile != null && now >= nextSnapshotTime) {
+					nextSnapshotTime = now + config.snapshotInterval;
+					saveSnapshot(now);
+				}
 			}
 			
-			// If we received a packet, refresh its sender in
-			//   the primary routing table.
-			if (validPacket) {
-				routingTable[prim].put(sender, senderAddress);
+			// One last snapshot on the way out, so a clean restart loses
+			//   nothing. Clear our interrupt first, or the file channel would
+			//   refuse to work.
+			Thread.interrupted();
+			if (config.snapshotFile != null)
+				saveSnapshot(System.currentTimeMillis());
+		}
+		
+		void saveSnapshot(long now) {
+			try {
+				RoutingTableSnapshot.save(routingTable, config.snapshotFile, now);
+			} catch (IOException ex) {
+				System.err.println("DumbNetworkerRouter: can't save snapshot: " + ex);
 			}
-		}		
-	}	
+		}
+	}
 }
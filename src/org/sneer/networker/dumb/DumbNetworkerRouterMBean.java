@@ -0,0 +1,67 @@
+package org.sneer.networker.dumb;
+
+/**
+ * The JMX management interface of a DumbNetworkerRouter. Every router 
+ *   registers itself with the platform MBeanServer as
+ *   "org.sneer.networker.dumb:type=DumbNetworkerRouter,port=PORT".
+ * 
+ * Counters are totals since the router started. Rates are averaged over the
+ *   last janitor interval (one second). Latencies are the time between a 
+ *   datagram coming out of receive() and the forwarded copy going into 
+ *   send(), in microseconds.
+ */
+public interface DumbNetworkerRouterMBean {
+	
+	public int getPort();
+	public int getWorkers();
+	
+	// Totals
+	public long getPacketsIn();
+	public long getBytesIn();
+	public long getPacketsOut();
+	public long getBytesOut();
+	public long getPings();
+	public long getRegistrations();
+	public long getIntroductions();
+	public long getRouted();
+	public long getDroppedUnknownDestination();
+	public long getDroppedShortPackets();
+	public long getDroppedRateLimitedAddress();
+	public long getDroppedRateLimitedNetId();
+	
+	// Rates (per second)
+	public double getPacketsInPerSecond();
+	public double getBytesInPerSecond();
+	public double getPacketsOutPerSecond();
+	public double getBytesOutPerSecond();
+	
+	// Routing table size and churn
+	public int getRoutingTableSize();
+	public long getRoutingTableInserts();
+	public long getRoutingTableAddressChanges();
+	public long getRoutingTableExpirations();
+	
+	// Cluster (all zeroes when not clustered)
+	public int getClusterMembers();
+	public int getClusterMembersUp();
+	public int getClusterDirectorySize();
+	public long getClusterForwardedOut();
+	public long getClusterForwardedIn();
+	
+	// Forwarding latency (microseconds)
+	public double getForwardingLatencyP50();
+	public double getForwardingLatencyP99();
+	public double getForwardingLatencyP999();
+	public double getForwardingLatencyMax();
+	
+	/**
+	 * @return The raw forwarding latency histogram in nanoseconds (see 
+	 *   org.sneer.networker.util.Histogram for the bucket layout).
+	 */
+	public long[] getForwardingLatencyHistogram();
+	
+	/**
+	 * @return The same line the router logs periodically.
+	 */
+	public String getStatsLine();
+}
@@ -0,0 +1,109 @@
+package org.sneer.networker.dumb;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import org.sneer.networker.NetId;
+
+/**
+ * The control messages spoken between DumbNetworker clients and the 
+ *   DumbNetworkerRouter, on top of the 64-byte header (sender NetId, then
+ *   receiver NetId) that every packet has.
+ * 
+ * A header addressed to the router (all-zeroes receiver) is a ping, and 
+ *   the router answers every ping with a pong (a header from the all-zeroes
+ *   sender). A ping may be followed by an op byte and its arguments, which
+ *   is how we extend the protocol: routers that don't know an op just see 
+ *   a ping, and clients that don't know an op just see a pong.
+ * 
+ * Internal helper for this package.
+ */
+final class DumbProtocol {
+	
+	// The all-zeroes NetId: the router's, as far as pings and pongs go.
+	static final NetId ROUTER = new NetId();
+	
+	// Packet header size (sender and receiver NetIds).
+	static final int HEADER_SIZE = 2 * NetId.SIZE;
+	
+	// Where the op byte of a control message is.
+	static final int OP_OFFSET = HEADER_SIZE;
+	
+	// Register a list of NetIds at once, all at the address the ping came
+	//   from (it's how a DumbNetworkerHub keeps all its identities alive).
+	//   The NetIds follow the op byte, back to back, and then maybe a 
+	//   nonce (8 bytes), which the ACK echoes like a BIND's so the hub 
+	//   knows which of its REGISTERs got through (older routers skip the
+	//   leftover bytes and answer with 0). The sender in the header may be
+	//   the all-zeroes NetId, and then so is the pong's receiver.
+	static final byte REGISTER = 1;
+	
+	// How many NetIds we put in one REGISTER, so it stays well under a 
+	//   typical MTU (64 + 1 + 32 * 32 = 1089 bytes).
+	static final int MAX_REGISTER_IDS = 32;
+	
+	// Register the header's sender and ask for an ACK: [BIND][nonce, 8 
+	//   bytes]. This is what DumbNetworkerDevice pings with, so it knows 
+	//   when the router has it (older routers just pong, which is as good
+	//   as an ACK, only without the nonce).
+	static final byte BIND = 2;
+	static final int BIND_SIZE = 1 + 8;
+	
+	// What follows the pong header of every answer to a ping: [ACK][the 
+	//   BIND's or REGISTER's nonce, or 0 for other pings][lease, 4 bytes]. The lease is
+	//   how many milliseconds the router will remember the pinger for 
+	//   unless it hears from it again.
+	static final byte ACK = 3;
+	static final int ACK_SIZE = 1 + 8 + 4;
+	
+	// Ask the router to introduce us to another device, so we can try to 
+	//   talk to it directly (see PeerPaths): [INTRODUCE][its NetId].
+	static final byte INTRODUCE = 4;
+	static final int INTRODUCE_SIZE = 1 + NetId.SIZE;
+	
+	// An address is [length of the IP address (4 or 16)][IP address][port,
+	//   2 bytes].
+	static final int MAX_ADDRESS_SIZE = 1 + 16 + 2;
+	
+	// The router's introduction, sent to both devices, following a pong 
+	//   header: [PEER][the other's NetId][the other's address, as the 
+	//   router sees it (see putAddress())].
+	static final byte PEER = 5;
+	static final int PEER_SIZE = 1 + NetId.SIZE + MAX_ADDRESS_SIZE;
+	
+	// What introduced devices send each other directly, to open a path 
+	//   through their NATs and to keep it open: [PUNCH][the receiver's 
+	//   NetId][our nonce 8][the receiver's nonce, from its latest PUNCH, 
+	//   or 0 if we've had none 8]. Echoing a nonce proves we get what is
+	//   sent to us at that address. The header's receiver is the 
+	//   all-zeroes NetId, like a ping's.
+	static final byte PUNCH = 6;
+	static final int PUNCH_SIZE = 1 + NetId.SIZE + 8 + 8;
+	
+	static void putAddress(ByteBuffer buf, InetSocketAddress address) {
+		byte[] ip = address.getAddress().getAddress();
+		buf.put((byte)ip.length).put(ip).putShort((short)address.getPort());
+	}
+	
+	// The address at offset, or null if there isn't a good one before limit.
+	static InetSocketAddress getAddress(ByteBuffer buf, int offset, int limit) {
+		if (offset >= limit)
+			return null;
+		int length = buf.get(offset);
+		if ((length != 4 && length != 16) || offset + 1 + length + 2 > limit)
+			return null;
+		byte[] ip = new byte[length];
+		for (int i = 0; i < length; ++i)
+			ip[i] = buf.get(offset + 1 + i);
+		int port = buf.getShort(offset + 1 + length) & 0xffff;
+		try {
+			return new InetSocketAddress(InetAddress.getByAddress(ip), port);
+		} catch (UnknownHostException ex) {
+			return null; // can't happen with 4 or 16 bytes
+		}
+	}
+	
+	private DumbProtocol() {
+	}
+}
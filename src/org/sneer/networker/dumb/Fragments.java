@@ -0,0 +1,406 @@
+package org.sneer.networker.dumb;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import org.sneer.networker.NetId;
+
+/**
+ * Fragmentation of payloads that don't fit in one datagram (or in the path
+ *   MTU we were told to stay under), and their reassembly at the other end,
+ *   so that IP never has to fragment anything of ours.
+ *
+ * A fragment's payload starts with a FRAGMENT_HEADER_SIZE header:
+ *
+ *   [MAGIC 8][message id 4][total length 4][index 2][count 2][bytes ...]
+ *
+ * The message is cut into count pieces of the same size (the last one may
+ *   be shorter), so the receiver knows where each piece goes from its index
+ *   alone. Payloads that fit but happen to start with MAGIC go out as a
+ *   1-piece message, so they can't be taken for fragments.
+ *
+ * Reassembly keeps the pieces of incomplete messages in memory up to a byte
+ *   budget: over it, the oldest messages are dropped to make room. So are
+ *   messages that take longer than TIMEOUT to complete. Since the datagrams
+ *   are unreliable anyway, losing a piece just means losing the message.
+ *
+ * What a message says its total length is costs nothing to say, so memory
+ *   is only taken for what has actually arrived: a message's buffer grows
+ *   (doubling) to cover the pieces it's got so far. And one sender can't
+ *   hog the budget: it gets MAX_SENDER_PARTIALS incomplete messages and
+ *   MAX_SENDER_BYTES at most, past which its own oldest ones are dropped,
+ *   not anybody else's. There are MAX_PARTIALS in all, whatever the bytes.
+ *
+ * A message goes out as a burst of datagrams, which the (non-blocking)
+ *   socket takes only as fast as its send buffer drains: senders wait
+ *   for room, PACE_NANOS at a time, and give the message up if there's none
+ *   for STALL_NANOS (a message missing a piece is lost anyway). The socket
+ *   buffers are made large enough for a good part of a burst on both ends
+ *   (see sizeBuffers()).
+ *
+ * The static methods are for the sending threads; the rest is for one
+ *   network thread.
+ *
+ * Internal helper for this package.
+ */
+class Fragments {
+
+	static final long MAGIC = 0x534e454552465247L; // "SNEERFRG"
+	static final int FRAGMENT_HEADER_SIZE = 8 + 4 + 4 + 2 + 2;
+	static final int MAX_FRAGMENTS = 0xffff;
+
+	// The largest message we send (send()ing a larger one is an
+	//   IllegalArgumentException) or reassemble.
+	static final int MAX_MESSAGE = 4 * 1024 * 1024;
+
+	// The smallest MTU we fragment for: the classic IPv4 minimum. That still
+	//   fits MAX_MESSAGE in MAX_FRAGMENTS.
+	static final int MIN_MTU = 576;
+
+	// How long a sender waits for room in the socket's send buffer before
+	//   trying again, and for how long it keeps trying, in nanoseconds.
+	static final long PACE_NANOS = 50 * 1000;
+	static final long STALL_NANOS = 100 * 1000 * 1000;
+
+	// The socket buffers we ask for (the OS may well give us less).
+	static final int SOCKET_BUFFER = 4 * 1024 * 1024;
+
+	// Defaults for the receiving side.
+	static final int REASSEMBLY_BUDGET = 16 * 1024 * 1024;
+	static final long TIMEOUT = 5000;
+	static final int MAX_PARTIALS = 1024;
+	static final int MAX_SENDER_PARTIALS = 16;
+	static final int MAX_SENDER_BYTES = MAX_MESSAGE;
+
+	// The smallest buffer a message starts with.
+	static final int MIN_BUFFER = 4 * 1024;
+
+	/*
+	 * Sending
+	 */
+
+	/**
+	 * @param length The size of a message about to be sent.
+	 * @throws IllegalArgumentException If it's over MAX_MESSAGE. Sending a
+	 *   part of it would deliver something else than what was sent.
+	 */
+	static void checkSize(int length) {
+		if (length > MAX_MESSAGE)
+			throw new IllegalArgumentException("Message too large: " + length + " bytes (at most " + MAX_MESSAGE + ")");
+	}
+
+	/**
+	 * @param budget How many bytes reassembly may take.
+	 * @param timeoutMillis How long a message may take to arrive whole.
+	 * @throws IllegalArgumentException If either is out of range.
+	 */
+	static void checkReassembly(int budget, long timeoutMillis) {
+		if (budget < 0)
+			throw new IllegalArgumentException("Reassembly budget out of range: " + budget);
+		if (timeoutMillis <= 0)
+			throw new IllegalArgumentException("Reassembly timeout out of range: " + timeoutMillis);
+	}
+
+	/**
+	 * @param payload What's to be sent (position to limit).
+	 * @param maxPayload The most that goes in one datagram after our header.
+	 * @return true if it has to go in fragments.
+	 */
+	static boolean needed(ByteBuffer payload, int maxPayload) {
+		int size = payload.remaining();
+		return size > maxPayload || (size >= FRAGMENT_HEADER_SIZE && payload.getLong(payload.position()) == MAGIC);
+	}
+
+	/**
+	 * Ask for SOCKET_BUFFER bytes of send and receive buffer, so a burst of
+	 *   fragments isn't mostly dropped on the way out or on the way in. 
+	 *   Whatever the OS says is fine.
+	 * @param channel A freshly opened channel.
+	 */
+	static void sizeBuffers(DatagramChannel channel) {
+		try {
+			if (channel.getOption(StandardSocketOptions.SO_SNDBUF) < SOCKET_BUFFER)
+				channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+			if (channel.getOption(StandardSocketOptions.SO_RCVBUF) < SOCKET_BUFFER)
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+		} catch (IOException | IllegalArgumentException ex) {
+			// we make do with what we've got
+		}
+	}
+
+	/**
+	 * @param total The size of the message.
+	 * @param maxPayload The most that goes in one datagram after our header.
+	 * @return How many fragments it takes.
+	 */
+	static int count(int total, int maxPayload) {
+		int piece = maxPayload - FRAGMENT_HEADER_SIZE;
+		return Math.max(1, (total + piece - 1) / piece);
+	}
+
+	/**
+	 * Write one fragment of a message.
+	 * @param fragment Where to write it (cleared, and flipped when done).
+	 * @param payload The whole message (position to limit), which is left as
+	 *   it was.
+	 * @param id The message's id.
+	 * @param index Which fragment.
+	 * @param count How many fragments there are.
+	 */
+	static void fill(ByteBuffer fragment, ByteBuffer payload, int id, int index, int count) {
+		int position = payload.position();
+		int limit = payload.limit();
+		int total = limit - position;
+		int piece = pieceSize(total, count);
+		int at = index * piece;
+		fragment.clear();
+		fragment.putLong(MAGIC).putInt(id).putInt(total).putShort((short)index).putShort((short)count);
+		payload.limit(position + Math.min(total, at + piece)).position(position + at);
+		fragment.put(payload);
+		payload.limit(limit).position(position);
+		fragment.flip();
+	}
+
+	static int pieceSize(int total, int count) {
+		return (total + count - 1) / count;
+	}
+
+	/**
+	 * @param payload A received payload (position to limit).
+	 * @return true if it's one of our fragments.
+	 */
+	static boolean isFragment(ByteBuffer payload) {
+		return payload.remaining() >= FRAGMENT_HEADER_SIZE && payload.getLong(payload.position()) == MAGIC;
+	}
+
+	/*
+	 * Reassembly
+	 */
+
+	// A message being reassembled, by sender and id.
+	static final class Key {
+
+		NetId sender;
+		int id;
+
+		Key(NetId sender, int id) {
+			this.sender = sender;
+			this.id = id;
+		}
+
+		@Override
+		public int hashCode() {
+			return sender.hashCode() * 31 + id;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (! (o instanceof Key))
+				return false;
+			Key k = (Key)o;
+			return id == k.id && sender.equals(k.sender);
+		}
+	}
+
+	static final class Partial {
+
+		final Key key;
+		final int total;
+		final BitSet got;
+		final int count;
+		final long started;
+		final Quota quota;
+		byte[] data; // grows as pieces arrive, up to total
+		int received;
+
+		Partial(Key key, int total, int count, long started, Quota quota) {
+			this.key = key;
+			this.total = total;
+			this.data = new byte[0];
+			this.got = new BitSet(count);
+			this.count = count;
+			this.started = started;
+			this.quota = quota;
+		}
+	}
+
+	// What a sender is holding.
+	static final class Quota {
+
+		int partials;
+		int bytes;
+	}
+
+	// Set by the network thread's owner, whenever (see DumbNetworkerDevice.
+	//   setReassembly()).
+	volatile int budget;
+	volatile long timeout;
+
+	// Oldest first, which is also the order they expire in.
+	final LinkedHashMap<Key, Partial> partials = new LinkedHashMap<>();
+	final HashMap<NetId, Quota> quotas = new HashMap<>();
+	final Key probe = new Key(null, 0);
+	int bytes;
+
+	// Statistics.
+	long completed;
+	long dropped;
+
+	Fragments() {
+		this(REASSEMBLY_BUDGET, TIMEOUT);
+	}
+
+	Fragments(int budget, long timeout) {
+		this.budget = budget;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Take a fragment in.
+	 * @param sender Who sent it.
+	 * @param payload The fragment (position to limit, for isFragment()). Its
+	 *   bytes are copied, so the buffer can be reused after this.
+	 * @param now The time, in milliseconds.
+	 * @return The whole message (a read-only buffer of its own) if this was
+	 *   its last missing piece, else null.
+	 */
+	ByteBuffer add(NetId sender, ByteBuffer payload, long now) {
+		int p = payload.position();
+		int id = payload.getInt(p + 8);
+		int total = payload.getInt(p + 12);
+		int index = payload.getShort(p + 16) & 0xffff;
+		int count = payload.getShort(p + 18) & 0xffff;
+		int size = payload.remaining() - FRAGMENT_HEADER_SIZE;
+
+		// Does it make sense?
+		if (total < 0 || total > MAX_MESSAGE || total > budget || count == 0 || index >= count)
+			return null;
+		int piece = pieceSize(total, count);
+		long at = (long)index * piece;
+		if (at > total || size != Math.min(piece, total - at))
+			return null;
+
+		if (count == 1) {
+			byte[] data = new byte[total];
+			copy(payload, data, 0);
+			++completed;
+			return ByteBuffer.wrap(data).asReadOnlyBuffer();
+		}
+
+		expire(now);
+
+		probe.sender = sender;
+		probe.id = id;
+		Partial partial = partials.get(probe);
+		probe.sender = null;
+		if (partial == null) {
+			// Make room, among everybody's and then among the sender's own
+			//   (in that order, so its quota can't go away in between).
+			while (partials.size() >= MAX_PARTIALS)
+				dropOldest(null, null);
+			Quota quota = quotas.get(sender);
+			if (quota == null) {
+				quota = new Quota();
+				quotas.put(sender, quota);
+			}
+			while (quota.partials >= MAX_SENDER_PARTIALS)
+				dropOldest(quota, null);
+			partial = new Partial(new Key(sender, id), total, count, now, quota);
+			partials.put(partial.key, partial);
+			++quota.partials;
+		} else if (partial.count != count || partial.total != total) {
+			return null; // not the same message after all
+		}
+
+		if (partial.got.get(index))
+			return null; // duplicate
+		if (! grow(partial, (int)at + size))
+			return null; // it was dropped to make room
+		partial.got.set(index);
+		copy(payload, partial.data, (int)at);
+		if (++partial.received < count)
+			return null;
+
+		partials.remove(partial.key);
+		forget(partial);
+		++completed;
+		return ByteBuffer.wrap(partial.data).asReadOnlyBuffer();
+	}
+
+	// Make partial's buffer cover up to end, doubling it (but never past 
+	//   its total), and making room for that if need be. Returns false if
+	//   partial itself had to go (which only happens if it's the oldest
+	//   and the only one left to drop).
+	boolean grow(Partial partial, int end) {
+		int length = partial.data.length;
+		if (end <= length)
+			return true;
+		int grown = Math.min(partial.total, Math.max(end, Math.max(MIN_BUFFER, length * 2)));
+		int more = grown - length;
+		Quota quota = partial.quota;
+		while (quota.bytes + more > MAX_SENDER_BYTES && quota.partials > 1)
+			dropOldest(quota, partial);
+		while (bytes + more > budget && partials.size() > 1)
+			dropOldest(null, partial);
+		if (quota.bytes + more > MAX_SENDER_BYTES || bytes + more > budget) {
+			partials.remove(partial.key);
+			forget(partial);
+			++dropped;
+			return false;
+		}
+		partial.data = Arrays.copyOf(partial.data, grown);
+		quota.bytes += more;
+		bytes += more;
+		return true;
+	}
+
+	// Drop the oldest message of the given sender's quota (or of anybody, if
+	//   null), other than keep.
+	void dropOldest(Quota quota, Partial keep) {
+		Iterator<Partial> it = partials.values().iterator();
+		while (it.hasNext()) {
+			Partial partial = it.next();
+			if (partial == keep || (quota != null && partial.quota != quota))
+				continue;
+			it.remove();
+			forget(partial);
+			++dropped;
+			return;
+		}
+	}
+
+	// Take a message that is no longer in partials off the books.
+	void forget(Partial partial) {
+		bytes -= partial.data.length;
+		Quota quota = partial.quota;
+		quota.bytes -= partial.data.length;
+		if (--quota.partials == 0)
+			quotas.remove(partial.key.sender);
+	}
+
+	// Drop the messages that have been incomplete for too long.
+	void expire(long now) {
+		Iterator<Partial> it = partials.values().iterator();
+		while (it.hasNext()) {
+			Partial partial = it.next();
+			if (now - partial.started < timeout)
+				break;
+			it.remove();
+			forget(partial);
+			++dropped;
+		}
+	}
+
+	static void copy(ByteBuffer payload, byte[] to, int at) {
+		int position = payload.position();
+		payload.position(position + FRAGMENT_HEADER_SIZE);
+		payload.get(to, at, payload.remaining());
+		payload.position(position);
+	}
+}
@@ -0,0 +1,316 @@
+package org.sneer.networker.dumb;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.sneer.networker.NetId;
+
+/**
+ * The direct (router-less) paths of a DumbNetworkerDevice to other devices,
+ *   opened by UDP hole punching.
+ *
+ * The first time we send to someone, we ask the router to introduce us
+ *   (INTRODUCE). The router tells both of us the other's address as it sees
+ *   it (PEER), and then both of us send PUNCHes straight to that address,
+ *   every PUNCH_INTERVAL. Our outgoing PUNCHes open our NATs for the
+ *   other's; once we get a PUNCH from the other that says it has had ours,
+ *   the path works both ways and we start sending straight to it.
+ *
+ * "Says it has had ours" means it echoes the random nonce our PUNCHes carry
+ *   to it, and only that moves a path: anybody can send a PUNCH with any 
+ *   NetId in it from anywhere. A PUNCH from an address other than the one
+ *   we have for the peer (which can be the peer itself, behind a NAT that
+ *   maps it differently for us than for the router) is answered with a 
+ *   PUNCH of ours, to that address, and the path only moves there once
+ *   a PUNCH from there echoes our nonce.
+ *
+ * Until then, and whenever it doesn't work out (no introduction or no
+ *   path in PUNCH_TIMEOUT), everything goes through the router as usual; we
+ *   try again after RETRY_AFTER. A working path is kept open with PUNCHes
+ *   every DIRECT_KEEPALIVE and is given up if nothing comes through it for
+ *   DIRECT_TIMEOUT, or when it's no longer used.
+ *
+ * route() is called by the sending threads; everything else by the
+ *   device's network thread.
+ *
+ * Internal helper for this package.
+ */
+class PeerPaths {
+
+	static final long PUNCH_INTERVAL = 100;
+	static final long PUNCH_TIMEOUT = 2000;
+	static final long DIRECT_KEEPALIVE = 15 * 1000;
+	static final long DIRECT_TIMEOUT = 3 * DIRECT_KEEPALIVE;
+	static final long RETRY_AFTER = 5 * 60 * 1000;
+
+	// How many peers we keep track of; others just go through the router.
+	static final int MAX_PEERS = 1024;
+
+	static final SecureRandom random = new SecureRandom();
+
+	// A device we have (or are trying to get) a direct path to.
+	static class Peer {
+
+		final NetId id;
+
+		// Where it is, once introduced; whether we send straight there;
+		//   and whether anyone used the path lately.
+		volatile InetSocketAddress address;
+		volatile boolean direct;
+		volatile boolean used = true;
+
+		// What our PUNCHes to it carry, never 0.
+		final long nonce;
+
+		// Network thread only:
+		long theirs;           // its nonce, to echo (0 until we have it)
+		boolean introduced;    // asked the router already
+		boolean heardFrom;     // got a PUNCH from it
+		long deadline;         // when we give up trying (while trying)
+		long retryAt;          // when we forget about it (after failing)
+		long lastHeard;        // last thing that came straight from it
+		long lastPunch;        // last PUNCH we sent it
+
+		Peer(NetId id) {
+			this.id = id;
+			long n;
+			do
+				n = random.nextLong();
+			while (n == 0);
+			this.nonce = n;
+		}
+	}
+
+	final DumbNetworkerDevice device;
+	final NetId localId;
+
+	final ConcurrentHashMap<NetId, Peer> peers = new ConcurrentHashMap<>();
+	final ConcurrentLinkedQueue<Peer> introductions = new ConcurrentLinkedQueue<>();
+	final HashMap<InetSocketAddress, Peer> byAddress = new HashMap<>();
+
+	final ByteBuffer out = ByteBuffer.allocateDirect(DumbProtocol.OP_OFFSET + Math.max(DumbProtocol.INTRODUCE_SIZE, DumbProtocol.PUNCH_SIZE));
+
+	PeerPaths(DumbNetworkerDevice device, NetId localId) {
+		this.device = device;
+		this.localId = localId;
+	}
+
+	/**
+	 * Where to send something for receiver.
+	 * @param receiver Who it's for.
+	 * @return Its address if we have a direct path to it, else null (send
+	 *   it through the router).
+	 */
+	InetSocketAddress route(NetId receiver) {
+		Peer peer = peers.get(receiver);
+		if (peer == null) {
+			if (peers.size() < MAX_PEERS) {
+				peer = new Peer(receiver);
+				if (peers.putIfAbsent(receiver, peer) == null) {
+					introductions.add(peer);
+					device.wakeup();
+				}
+			}
+			return null;
+		}
+		if (! peer.used)
+			peer.used = true;
+		return peer.direct ? peer.address : null;
+	}
+
+	boolean isDirect(NetId receiver) {
+		Peer peer = peers.get(receiver);
+		return peer != null && peer.direct;
+	}
+
+	// Send the INTRODUCEs asked for by route().
+	void introduce(DatagramChannel channel, InetSocketAddress router, long now) {
+		Peer peer;
+		while ((peer = introductions.poll()) != null) {
+			peer.introduced = true;
+			peer.deadline = now + PUNCH_TIMEOUT;
+			out.clear();
+			localId.put(out);
+			DumbProtocol.ROUTER.put(out); // to the router
+			out.put(DumbProtocol.INTRODUCE);
+			peer.id.put(out);
+			out.flip();
+			send(channel, router);
+		}
+	}
+
+	// A PEER from the router (the op byte is at offset): start punching.
+	void introduced(ByteBuffer in, int offset, int limit, DatagramChannel channel, long now) {
+		if (limit - offset < 1 + NetId.SIZE)
+			return;
+		InetSocketAddress address = DumbProtocol.getAddress(in, offset + 1 + NetId.SIZE, limit);
+		if (address == null)
+			return;
+		NetId id = NetId.read(in, offset + 1);
+		Peer peer = peers.get(id);
+		if (peer == null) {
+			// Somebody wants to talk to us.
+			if (peers.size() >= MAX_PEERS)
+				return;
+			peer = new Peer(id);
+			Peer other = peers.putIfAbsent(id, peer);
+			if (other != null)
+				peer = other;
+		}
+		if (peer.direct)
+			return; // old news
+		moveTo(peer, address);
+		peer.introduced = true;
+		peer.retryAt = 0;
+		peer.deadline = now + PUNCH_TIMEOUT;
+		punch(peer, channel, now);
+	}
+
+	// A PUNCH from source (the op byte is at offset; the header's sender
+	//   is at start).
+	void punched(ByteBuffer in, int start, int offset, int limit, InetSocketAddress source, DatagramChannel channel, long now) {
+		if (limit - offset < DumbProtocol.PUNCH_SIZE || ! localId.equalsAt(in, offset + 1))
+			return;
+		long theirs = in.getLong(offset + 1 + NetId.SIZE);
+		long echo = in.getLong(offset + 1 + NetId.SIZE + 8);
+		NetId id = NetId.read(in, start);
+		Peer peer = peers.get(id);
+		if (peer == null) {
+			// Its PUNCH beat the router's PEER here.
+			if (peers.size() >= MAX_PEERS)
+				return;
+			peer = new Peer(id);
+			Peer other = peers.putIfAbsent(id, peer);
+			if (other != null)
+				peer = other;
+			peer.introduced = true;
+			peer.deadline = now + PUNCH_TIMEOUT;
+		} else if (! peer.direct && peer.retryAt != 0) {
+			// We'd given up, but it's still trying: so do we.
+			peer.introduced = true;
+			peer.retryAt = 0;
+			peer.deadline = now + PUNCH_TIMEOUT;
+		}
+		
+		// It has had one of ours (at the address we sent that to, which
+		//   this may not come from, e.g. behind a hairpinning NAT).
+		boolean verified = echo == peer.nonce;
+		if (! source.equals(peer.address)) {
+			if (! verified) {
+				// The peer somewhere new, or somebody pretending to be it:
+				//   it's got to echo our nonce from there before we go there.
+				punch(peer, channel, now, source, theirs);
+				return;
+			}
+			moveTo(peer, source);
+		}
+		peer.theirs = theirs;
+		peer.lastHeard = now;
+		peer.used = true;
+		boolean firstHeard = ! peer.heardFrom;
+		peer.heardFrom = true;
+		if (verified && ! peer.direct) {
+			// It has heard us too: the path works both ways.
+			peer.direct = true;
+			peer.retryAt = 0;
+		}
+		// Let it know we hear it (but don't answer its acknowledgements,
+		//   or we'd never stop).
+		if (firstHeard || ! verified)
+			punch(peer, channel, now);
+	}
+
+	// Something else came from source: is it one of our direct peers?
+	boolean fromPeer(InetSocketAddress source, long now) {
+		Peer peer = byAddress.get(source);
+		if (peer == null)
+			return false;
+		peer.lastHeard = now;
+		if (! peer.used)
+			peer.used = true;
+		return true;
+	}
+
+	// Punch, keep alive, give up and forget, as due.
+	void tick(DatagramChannel channel, long now) {
+		Iterator<Peer> it = peers.values().iterator();
+		while (it.hasNext()) {
+			Peer peer = it.next();
+			if (peer.direct) {
+				if (now - peer.lastHeard > DIRECT_TIMEOUT) {
+					// Broken: back to the router for a while.
+					peer.direct = false;
+					peer.retryAt = now + RETRY_AFTER;
+				} else if (now - peer.lastPunch >= DIRECT_KEEPALIVE) {
+					if (! peer.used) {
+						forget(it, peer); // nobody's using it
+						continue;
+					}
+					peer.used = false;
+					punch(peer, channel, now);
+				}
+			} else if (peer.retryAt != 0) {
+				if (now >= peer.retryAt)
+					forget(it, peer); // the next send() tries again
+			} else if (peer.introduced) {
+				if (now >= peer.deadline)
+					peer.retryAt = now + RETRY_AFTER; // didn't work out
+				else if (peer.address != null && now - peer.lastPunch >= PUNCH_INTERVAL)
+					punch(peer, channel, now);
+			}
+		}
+	}
+
+	// Whether tick() has punching to do soon, as opposed to keepalives.
+	boolean isPunching() {
+		for (Peer peer : peers.values()) {
+			if (! peer.direct && peer.retryAt == 0)
+				return true;
+		}
+		return false;
+	}
+
+	void moveTo(Peer peer, InetSocketAddress address) {
+		if (peer.address != null)
+			byAddress.remove(peer.address);
+		peer.address = address;
+		byAddress.put(address, peer);
+	}
+
+	void forget(Iterator<Peer> it, Peer peer) {
+		it.remove();
+		if (peer.address != null)
+			byAddress.remove(peer.address);
+	}
+
+	void punch(Peer peer, DatagramChannel channel, long now) {
+		peer.lastPunch = now;
+		punch(peer, channel, now, peer.address, peer.theirs);
+	}
+
+	// A PUNCH to the peer at address, echoing theirs.
+	void punch(Peer peer, DatagramChannel channel, long now, InetSocketAddress address, long theirs) {
+		out.clear();
+		localId.put(out);
+		DumbProtocol.ROUTER.put(out);
+		out.put(DumbProtocol.PUNCH);
+		peer.id.put(out);
+		out.putLong(peer.nonce).putLong(theirs);
+		out.flip();
+		send(channel, address);
+	}
+
+	void send(DatagramChannel channel, InetSocketAddress address) {
+		try {
+			channel.send(out, address);
+		} catch (IOException ex) {
+			// Datagrams get lost; whatever.
+		}
+	}
+}
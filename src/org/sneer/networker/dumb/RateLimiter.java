@@ -0,0 +1,102 @@
+package org.sneer.networker.dumb;
+
+/**
+ * A bounded table of token buckets, used by the router to keep any single
+ *   source from hogging it.
+ *
+ * Each bucket is kept as a GCRA "theoretical arrival time": a packet is let
+ *   through if the bucket's TAT isn't more than the burst tolerance ahead of
+ *   now, and then pushes the TAT forward by one emission interval. That is
+ *   exactly a token bucket of the given rate and burst size, but it takes a
+ *   single long per bucket and no floating point.
+ *
+ * The table has a fixed number of slots, so the memory used never depends
+ *   on how many sources there are. It's set-associative: a source's hash
+ *   picks a set of WAYS slots, and it uses whichever of them is tagged with
+ *   it. A source that finds none takes over the slot of the set that has
+ *   been idle the longest, and carries over its bucket as it was: a slot
+ *   idle long enough to have filled up again comes with a full bucket, but
+ *   one that is still draining doesn't. So nobody gets a fresh bucket by
+ *   pushing others out of their slots (or out of their own, by taking turns
+ *   with several tags), while a well-behaved source only shares a bucket
+ *   when WAYS others in its set are busy at the same time.
+ *
+ * Sets are locked in stripes, so the router's workers rarely contend.
+ *
+ * Internal helper for this package.
+ */
+class RateLimiter {
+
+	static final int STRIPES = 64;
+	
+	// Slots per set.
+	static final int WAYS = 4;
+
+	// Nanoseconds between packets at the sustained rate.
+	final long interval;
+
+	// How far ahead of now a bucket's TAT may be (burst - 1 intervals).
+	final long tolerance;
+
+	final long[] tags;
+	final long[] tats;
+	final boolean[] used;
+	final int mask;
+	final Object[] locks = new Object[STRIPES];
+
+	/**
+	 * Create a limiter.
+	 * @param slots How many sources to track (rounded up to a power of two,
+	 *   at most 2^24).
+	 * @param rate Sustained packets per second allowed per source.
+	 * @param burst How many packets a source may send back to back.
+	 */
+	RateLimiter(int slots, double rate, int burst) {
+		int n = STRIPES * WAYS;
+		while (n < slots && n < (1 << 24))
+			n <<= 1;
+		tags = new long[n];
+		tats = new long[n];
+		used = new boolean[n];
+		mask = n - 1;
+		interval = Math.max(1, (long)(1e9 / rate));
+		tolerance = interval * (Math.max(1, burst) - 1);
+		for (int i = 0; i < STRIPES; ++i)
+			locks[i] = new Object();
+	}
+
+	/**
+	 * Account for a packet.
+	 * @param tag Identifies the source (0 is as good as any other value).
+	 *   Sources that can be made up at will (NetIds) should get a keyed
+	 *   tag, or colliding ones could be made up on purpose.
+	 * @param hash A well-mixed hash of the source.
+	 * @param nowNanos System.nanoTime().
+	 * @return true if the packet is within the source's limit.
+	 */
+	boolean allow(long tag, int hash, long nowNanos) {
+		int set = (hash ^ (hash >>> 16)) * 0x9E3779B1 >>> 8 & mask & ~(WAYS - 1);
+		synchronized (locks[(set / WAYS) & (STRIPES - 1)]) {
+			// Ours, or else an unused one, or else the least recently busy.
+			int i = -1;
+			for (int w = set; w < set + WAYS; ++w) {
+				if (used[w] && tags[w] == tag) {
+					i = w;
+					break;
+				}
+				if (i < 0 || (used[i] && (! used[w] || tats[w] - tats[i] < 0)))
+					i = w;
+			}
+			// Taken over or not, the bucket is what the slot had.
+			long tat = used[i] ? tats[i] : nowNanos;
+			tags[i] = tag;
+			used[i] = true;
+			if (tat - nowNanos > tolerance)
+				return false;
+			if (tat - nowNanos < 0)
+				tat = nowNanos;
+			tats[i] = tat + interval;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package org.sneer.networker.dumb;
+
+import java.util.ArrayList;
+
+/**
+ * Whether the router knows where we are: set by the network thread when
+ *   the router acknowledges us (or anything else arrives from it), cleared
+ *   when it stops answering or we move to another router. Application
+ *   threads can wait for it or leave a callback.
+ *
+ * This has its own lock because the devices' monitors are held while they
+ *   join their network threads, which are the ones that set this.
+ *
+ * Internal helper for this package.
+ */
+class Registration {
+
+	private volatile boolean connected;
+	private ArrayList<Runnable> callbacks = new ArrayList<>();
+
+	boolean isConnected() {
+		return connected;
+	}
+
+	// The router has us. Wakes up the waiters and runs the callbacks (in
+	//   the calling thread, outside the lock).
+	void connected() {
+		if (connected)
+			return;
+		ArrayList<Runnable> run;
+		synchronized (this) {
+			connected = true;
+			notifyAll();
+			if (callbacks.isEmpty())
+				return;
+			run = callbacks;
+			callbacks = new ArrayList<>();
+		}
+		for (Runnable callback : run) {
+			try {
+				callback.run();
+			} catch (RuntimeException ex) {
+				// Not our problem, and it mustn't kill the network thread.
+			}
+		}
+	}
+
+	// The router may have forgotten us (or we're starting over).
+	void lost() {
+		connected = false;
+	}
+
+	/**
+	 * Wait until connected.
+	 * @param timeoutMillis How long to wait at most.
+	 * @return true if connected, false if the time ran out.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	synchronized boolean await(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (! connected) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return false;
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Run something once connected: right now (in this thread) if we are,
+	 *   or else in the network thread when we get there.
+	 * @param callback What to run, once.
+	 */
+	void whenConnected(Runnable callback) {
+		synchronized (this) {
+			if (! connected) {
+				callbacks.add(callback);
+				return;
+			}
+		}
+		callback.run();
+	}
+}
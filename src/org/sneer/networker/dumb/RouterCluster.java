@@ -0,0 +1,351 @@
+package org.sneer.networker.dumb;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The clustering state of a DumbNetworkerRouter that is one of several
+ *   routers sharing an overlay.
+ *
+ * Every member of the cluster is configured with the same list of members
+ *   (their UDP addresses). The NetId space is split among the live members
+ *   with consistent hashing (a ring of VIRTUAL_NODES points per member), so
+ *   every NetId has an "owner" router, and adding or losing a router only
+ *   moves the NetIds of its neighbours on the ring.
+ *
+ * A device only ever talks to its own "home" router, which keeps it in its
+ *   routing table as usual. The home router tells the owner of every NetId it
+ *   hosts about it (REGISTER frames); the owner keeps those in its directory,
+ *   a second RoutingTable that maps NetIds to home routers. A packet for a
+ *   NetId that isn't local goes to the owner, which relays it to the home
+ *   router, which delivers it (FORWARD frames). So it is at most two hops
+ *   between routers, and every router only has to know about its own devices
+ *   plus its share of the directory.
+ *
+ * Members say HELLO to each other every second; a member we haven't heard
+ *   from in PEER_TIMEOUT is taken out of the ring until it shows up again.
+ *   Whenever the ring changes, every router re-registers all of its devices
+ *   with their (possibly new) owners. Registrations are also repeated every
+ *   third of a lease, so directory entries live as long as the devices do.
+ *
+ * Frames between routers are told apart from device packets by their source
+ *   address, so members have to be listed with the addresses they send from.
+ *   All frames start with a type byte:
+ *   FORWARD:  type, hop count, then the original device packet.
+ *   REGISTER: type, 0, then any number of 32-byte NetIds.
+ *   HELLO:    type, 0.
+ *
+ * Internal helper for this package.
+ */
+class RouterCluster {
+
+	// Frame types
+	static final byte FORWARD = 1;
+	static final byte REGISTER = 2;
+	static final byte HELLO = 3;
+
+	// Bytes before the payload of every frame.
+	static final int FRAME_HEADER = 2;
+
+	// A forwarded packet is dropped rather than forwarded by more than this
+	//   many routers (origin -> owner -> home; more is a loop while the
+	//   members disagree about the ring).
+	static final int MAX_HOPS = 2;
+
+	// Points per member on the ring.
+	static final int VIRTUAL_NODES = 128;
+
+	// A member is down if we haven't heard from it for this long.
+	static final long PEER_TIMEOUT = 5000;
+
+
+	// NetIds per REGISTER frame, so frames fit in a 1500-byte MTU.
+	static final int KEYS_PER_REGISTER = 40;
+
+	// All members (including us), in configuration order.
+	final InetSocketAddress[] members;
+
+	// Our index in members.
+	final int self;
+
+	// When we last heard from each member (written by the workers).
+	final AtomicLongArray lastHeard;
+
+	// Which members are in the current ring (janitor only).
+	final boolean[] up;
+
+	// The current ring (replaced by the janitor when a member comes or goes).
+	volatile Ring ring;
+
+	// The NetIds we own, and their home routers.
+	final RoutingTable directory;
+
+	// NetIds that just showed up locally and haven't been registered yet.
+	final ConcurrentLinkedQueue<RouterKey> announcements = new ConcurrentLinkedQueue<>();
+
+	// The janitor's REGISTER frame under construction, per member.
+	final ByteBuffer[] registers;
+
+	// How often every local NetId is registered again with its owner.
+	final long reannounceInterval;
+	long nextReannounce;
+
+	/**
+	 * Set up the cluster state of a router.
+	 * @param members All members of the cluster, including the router itself.
+	 * @param port The router's local UDP port, used to find out which member
+	 *   it is.
+	 * @param concurrency Number of router workers.
+	 * @throws IOException If the router isn't on the list (or is more than
+	 *   once).
+	 */
+	RouterCluster(InetSocketAddress[] members, int port, int concurrency) throws IOException {
+		this(members, port, concurrency, DumbNetworkerRouter.ENTRY_TTL);
+	}
+	
+	/**
+	 * Same, with a lease other than the default.
+	 * @param lease How long directory entries live (the routers' lease), 
+	 *   in milliseconds.
+	 */
+	RouterCluster(InetSocketAddress[] members, int port, int concurrency, long lease) throws IOException {
+		this.reannounceInterval = lease / 3;
+		this.members = members.clone();
+		this.self = findSelf(this.members, port);
+		lastHeard = new AtomicLongArray(members.length);
+		up = new boolean[members.length];
+		up[self] = true;
+		ring = new Ring(this.members, up);
+		directory = new RoutingTable(concurrency, lease);
+		registers = new ByteBuffer[members.length];
+		for (int i = 0; i < members.length; ++i) {
+			registers[i] = ByteBuffer.allocate(FRAME_HEADER + KEYS_PER_REGISTER * 32);
+			registers[i].put(REGISTER).put((byte)0);
+		}
+	}
+
+	// The member with our port and one of our addresses.
+	static int findSelf(InetSocketAddress[] members, int port) throws IOException {
+		int self = -1;
+		for (int i = 0; i < members.length; ++i) {
+			InetSocketAddress m = members[i];
+			if (m.isUnresolved())
+				throw new IOException("Can't resolve cluster member " + m);
+			if (m.getPort() != port || ! isLocal(m.getAddress()))
+				continue;
+			if (self >= 0)
+				throw new IOException("Cluster member listed twice: " + m);
+			self = i;
+		}
+		if (self < 0)
+			throw new IOException("This router (port " + port + ") is not in the cluster member list");
+		return self;
+	}
+
+	static boolean isLocal(InetAddress address) throws SocketException {
+		return address.isLoopbackAddress() || address.isAnyLocalAddress()
+				|| NetworkInterface.getByInetAddress(address) != null;
+	}
+
+	/**
+	 * @param address The source address of a packet.
+	 * @return The index of the member it came from, or -1 if it's not from
+	 *   another member.
+	 */
+	int memberIndex(SocketAddress address) {
+		for (int i = 0; i < members.length; ++i) {
+			if (i != self && members[i].equals(address))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Note that a member is alive.
+	 * @param member The member.
+	 * @param now Current time in milliseconds.
+	 */
+	void heard(int member, long now) {
+		if (lastHeard.get(member) < now)
+			lastHeard.set(member, now);
+	}
+
+	/**
+	 * Find out where to send a packet for a NetId that isn't local.
+	 * @param key The receiver.
+	 * @param now Current time in milliseconds.
+	 * @return Its owner if it isn't us, or else its home router from our
+	 *   directory, or null if we know nothing about it.
+	 */
+	InetSocketAddress nextHop(RouterKey key, long now) {
+		int owner = ring.owner(key);
+		if (owner != self)
+			return members[owner];
+		return directory.lookup(key, now);
+	}
+
+	/**
+	 * Remember that a NetId just showed up locally, so that the janitor
+	 *   registers it with its owner.
+	 * @param key The NetId (must not be changed afterwards).
+	 */
+	void announce(RouterKey key) {
+		announcements.add(key);
+	}
+
+	/**
+	 * Cluster housekeeping, to be called by the janitor every second: say
+	 *   hello, update the ring, expire the directory and send registrations.
+	 * @param table The router's routing table (its devices).
+	 * @param channel Where to send from.
+	 * @param now Current time in milliseconds.
+	 */
+	void tick(RoutingTable table, final DatagramChannel channel, final long now) {
+		ByteBuffer hello = ByteBuffer.allocate(FRAME_HEADER);
+		for (int i = 0; i < members.length; ++i) {
+			if (i == self)
+				continue;
+			hello.clear();
+			hello.put(HELLO).put((byte)0).flip();
+			send(channel, hello, members[i]);
+		}
+
+		boolean changed = false;
+		for (int i = 0; i < members.length; ++i) {
+			if (i == self)
+				continue;
+			boolean alive = now - lastHeard.get(i) < PEER_TIMEOUT;
+			if (alive != up[i]) {
+				up[i] = alive;
+				changed = true;
+			}
+		}
+		if (changed) {
+			ring = new Ring(members, up);
+			nextReannounce = now;
+		}
+
+		directory.expire(now);
+
+		final Ring r = ring;
+		RouterKey key;
+		while ((key = announcements.poll()) != null)
+			register(key, r, channel);
+		if (now >= nextReannounce) {
+			nextReannounce = now + reannounceInterval;
+			table.forEach(new RouterKey(), new RoutingTable.Visitor() {
+				@Override
+				public void visit(RouterKey key) {
+					register(key, r, channel);
+				}
+			}, now);
+		}
+		for (int i = 0; i < members.length; ++i)
+			flush(i, channel);
+	}
+
+	// Add a NetId to the REGISTER frame for its owner.
+	void register(RouterKey key, Ring r, DatagramChannel channel) {
+		int owner = r.owner(key);
+		if (owner == self)
+			return;
+		ByteBuffer frame = registers[owner];
+		key.put(frame);
+		if (! frame.hasRemaining())
+			flush(owner, channel);
+	}
+
+	void flush(int member, DatagramChannel channel) {
+		ByteBuffer frame = registers[member];
+		if (frame.position() == FRAME_HEADER)
+			return;
+		frame.flip();
+		send(channel, frame, members[member]);
+		frame.clear();
+		frame.position(FRAME_HEADER);
+	}
+
+	static void send(DatagramChannel channel, ByteBuffer frame, InetSocketAddress to) {
+		try {
+			channel.send(frame, to);
+		} catch (IOException ex) {
+			// Lost datagram; it'll be retried.
+		}
+	}
+
+	/**
+	 * @return How many members are in the ring (including us).
+	 */
+	int getMembersUp() {
+		return ring.members;
+	}
+
+	/**
+	 * An immutable consistent-hash ring over the live members.
+	 */
+	static class Ring {
+
+		// Sorted ring positions and the member each belongs to.
+		final long[] points;
+		final int[] owners;
+		final int members;
+
+		Ring(InetSocketAddress[] all, boolean[] up) {
+			TreeMap<Long, Integer> ring = new TreeMap<>();
+			int n = 0;
+			for (int i = 0; i < all.length; ++i) {
+				if (! up[i])
+					continue;
+				++n;
+				// Positions depend only on the member's address bytes and
+				//   port, so every router computes the same ring.
+				long base = all[i].getPort();
+				for (byte b : all[i].getAddress().getAddress())
+					base = base * 257 + (b & 0xff);
+				for (int v = 0; v < VIRTUAL_NODES; ++v)
+					ring.put(mix(base * VIRTUAL_NODES + v), i);
+			}
+			members = n;
+			points = new long[ring.size()];
+			owners = new int[ring.size()];
+			int j = 0;
+			for (Map.Entry<Long, Integer> e : ring.entrySet()) {
+				points[j] = e.getKey();
+				owners[j] = e.getValue();
+				++j;
+			}
+		}
+
+		// The member owning a key: the first point at or after the key's
+		//   position, wrapping around.
+		int owner(RouterKey key) {
+			long h = mix(key.w0 ^ Long.rotateLeft(key.w1, 16) ^ Long.rotateLeft(key.w2, 32) ^ Long.rotateLeft(key.w3, 48));
+			int lo = 0, hi = points.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (points[mid] < h)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return owners[lo == points.length ? 0 : lo];
+		}
+
+		// SplitMix64 finalizer.
+		static long mix(long z) {
+			z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+			z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+			return z ^ (z >>> 31);
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package org.sneer.networker.dumb;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+/**
+ * A 256-bit NetId as the router sees it: four longs read straight out of 
+ *   a packet header, with the hash computed once when loaded.
+ * 
+ * The router keeps one mutable RouterKey per header field per worker and 
+ *   reloads it for every packet, so looking up a routing table entry doesn't
+ *   allocate anything. Only when a key has to be stored in a table do we make
+ *   an immutable-by-convention copy().
+ * 
+ * The hash is keyed with a random seed picked when the process starts, so
+ *   whoever makes up NetIds can't pick ones that all land in the same 
+ *   routing table segment or probe chain: they can't know where any NetId
+ *   lands.
+ * 
+ * Internal helper for this package.
+ */
+class RouterKey {
+	
+	long w0, w1, w2, w3;
+	int hash;
+	
+	// The whole keyed hash, which the hash is folded from: a tag for the
+	//   rate limiter that can't be made to collide on purpose. Set by
+	//   load() and copy() only.
+	long tag;
+	
+	// Load the 32 bytes at the given absolute offset of buf. Does not 
+	//   change the buffer's position.
+	void load(ByteBuffer buf, int offset) {
+		w0 = buf.getLong(offset);
+		w1 = buf.getLong(offset + 8);
+		w2 = buf.getLong(offset + 16);
+		w3 = buf.getLong(offset + 24);
+		tag = sipHash(w0, w1, w2, w3);
+		hash = (int)(tag ^ (tag >>> 32));
+	}
+	
+	// Write the 32 bytes at the buffer's current position.
+	void put(ByteBuffer buf) {
+		buf.putLong(w0);
+		buf.putLong(w1);
+		buf.putLong(w2);
+		buf.putLong(w3);
+	}
+	
+	// The all-zeroes NetId (router ping/pong address).
+	boolean isZero() {
+		return (w0 | w1 | w2 | w3) == 0;
+	}
+	
+	RouterKey copy() {
+		RouterKey k = new RouterKey();
+		k.w0 = w0;
+		k.w1 = w1;
+		k.w2 = w2;
+		k.w3 = w3;
+		k.hash = hash;
+		k.tag = tag;
+		return k;
+	}
+	
+	// The seed, for this process only.
+	static final long K0, K1;
+	static {
+		SecureRandom random = new SecureRandom();
+		K0 = random.nextLong();
+		K1 = random.nextLong();
+	}
+	
+	// SipHash-1-3 of the four words (and the length, 32 bytes, as SipHash
+	//   has it), keyed with K0 and K1. Around a hundred simple operations,
+	//   and nothing allocated. Not the same as NetId.hashCode(): that one
+	//   is unkeyed and only good for NetIds nobody chose against us.
+	static long sipHash(long w0, long w1, long w2, long w3) {
+		long v0 = K0 ^ 0x736f6d6570736575L;
+		long v1 = K1 ^ 0x646f72616e646f6dL;
+		long v2 = K0 ^ 0x6c7967656e657261L;
+		long v3 = K1 ^ 0x7465646279746573L;
+		for (int i = 0; i < 5; ++i) {
+			long m = i == 0 ? w0 : i == 1 ? w1 : i == 2 ? w2 : i == 3 ? w3 : 32L << 56;
+			v3 ^= m;
+			v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+			v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+			v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+			v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+			v0 ^= m;
+		}
+		v2 ^= 0xff;
+		for (int i = 0; i < 3; ++i) {
+			v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+			v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+			v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+			v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+		}
+		return v0 ^ v1 ^ v2 ^ v3;
+	}
+	
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof RouterKey))
+			return false;
+		RouterKey other = (RouterKey) obj;
+		return w0 == other.w0 && w1 == other.w1 && w2 == other.w2 && w3 == other.w3;
+	}
+}
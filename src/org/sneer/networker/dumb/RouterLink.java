@@ -0,0 +1,56 @@
+package org.sneer.networker.dumb;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A DumbNetworkerDevice's relationship with one router: its ping schedule
+ *   and backoff, whether it answers, and how long it takes to. A device
+ *   bound to several routers has one of these for each, and sends through
+ *   the fastest one that is up (see DumbNetworkerDevice.choose()).
+ *
+ * Everything but up and srtt belongs to the device's network thread.
+ *
+ * Internal helper for this package.
+ */
+class RouterLink {
+
+	final InetSocketAddress address;
+
+	// Its ping timer in the device's TimingWheel.
+	final int timer;
+
+	// How often we ping it once it has us (a third of its lease), the
+	//   current retry backoff, and how many pings in a row it ignored.
+	long keepalive = DumbNetworkerDevice.KEEPALIVE;
+	long pingDelay = DumbNetworkerDevice.FIRST_RETRY;
+	int unanswered;
+
+	// Our latest ping's nonce, and when it went out (System.nanoTime()).
+	long nonce;
+	long pingSentAt;
+
+	// Whether it answers, and its smoothed round-trip time in nanoseconds
+	//   (0 until we have a sample; routers that don't echo our nonces never
+	//   give us one).
+	volatile boolean up;
+	volatile long srtt;
+
+	RouterLink(InetSocketAddress address, int timer, long nonce) {
+		this.address = address;
+		this.timer = timer;
+		this.nonce = nonce;
+	}
+
+	// An ACK of our latest ping came back: take the RTT sample (the usual
+	//   1/8 exponentially weighted moving average).
+	void sample(long rtt) {
+		long s = srtt;
+		srtt = s == 0 ? rtt : s + (rtt - s) / 8;
+	}
+
+	// For comparing links: unknown RTTs are worse than any known one.
+	long rank() {
+		long s = srtt;
+		return s == 0 ? Long.MAX_VALUE : s;
+	}
+}
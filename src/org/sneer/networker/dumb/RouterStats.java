@@ -0,0 +1,47 @@
+package org.sneer.networker.dumb;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.sneer.networker.util.Histogram;
+
+/**
+ * The counters of one router worker. Each worker has its own, so they are
+ *   never contended; DumbNetworkerRouter adds them up when asked.
+ * 
+ * Internal helper for this package.
+ */
+class RouterStats {
+	
+	// Counter indices
+	static final int PACKETS_IN = 0;
+	static final int BYTES_IN = 1;
+	static final int PACKETS_OUT = 2;
+	static final int BYTES_OUT = 3;
+	static final int PINGS = 4;
+	static final int ROUTED = 5;
+	static final int DROPPED_UNKNOWN = 6;
+	static final int DROPPED_SHORT = 7;
+	static final int CLUSTER_OUT = 8;
+	static final int CLUSTER_IN = 9;
+	static final int DROPPED_LIMIT_ADDRESS = 10;
+	static final int DROPPED_LIMIT_NETID = 11;
+	static final int REGISTRATIONS = 12;
+	static final int INTRODUCTIONS = 13;
+	static final int COUNTERS = 14;
+	
+	final AtomicLongArray counters = new AtomicLongArray(COUNTERS);
+	
+	// Forwarding latency in nanoseconds.
+	final Histogram latency = new Histogram();
+	
+	void add(int counter, long amount) {
+		counters.addAndGet(counter, amount);
+	}
+	
+	void increment(int counter) {
+		counters.incrementAndGet(counter);
+	}
+	
+	long get(int counter) {
+		return counters.get(counter);
+	}
+}
@@ -0,0 +1,551 @@
+package org.sneer.networker.dumb;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import org.sneer.networker.util.TimingWheel;
+
+/**
+ * The DumbNetworkerRouter's NetId-to-address routing table.
+ *
+ * This is an open-addressing (linear probing) hash table made of primitive
+ *   arrays, keyed by the raw 256-bit NetId. Every slot holds the four key
+ *   words, the address packed into two longs (IPv4 is stored as an
+ *   IPv4-mapped IPv6 address), the UDP port and the last time we heard from
+ *   the peer. That's around 70 bytes per slot instead of the hundreds of bytes
+ *   a HashMap entry plus a NetId plus an InetSocketAddress cost.
+ *
+ * The only object we keep per slot is a lazily-built InetSocketAddress, which
+ *   is materialized the first time we have to forward something to the peer
+ *   (DatagramChannel.send() wants one) and is dropped when the peer moves or
+ *   expires. Peers that only ping never get one.
+ *
+ * Entries expire exactly ttl milliseconds after the last packet we got from
+ *   them: an expired entry is never returned by lookup(), and every entry has
+ *   a lease timer in its segment's TimingWheel that reclaims the slot when
+ *   expire() advances the wheel past it. Refreshing an entry only bumps its
+ *   lastSeen; the timer notices that when it fires and re-arms itself, so the
+ *   forwarding path never touches the wheel for known peers.
+ *
+ * The table is split in segments that are locked independently, so the
+ *   router's workers mostly don't contend with each other.
+ *
+ * Internal helper for this package.
+ */
+class RoutingTable {
+
+	// Fraction of the slots of a segment we allow to be in use.
+	static final float LOAD_FACTOR = 0.75f;
+
+	// Initial slots per segment (must be a power of two).
+	static final int INITIAL_SEGMENT_CAPACITY = 1024;
+	
+	// Resolution of the lease timers.
+	static final long LEASE_TICK = 1000;
+
+	final Segment[] segments;
+	final int segmentShift;
+
+	// Time-to-live in milliseconds of an entry that isn't refreshed.
+	final long ttl;
+
+	/**
+	 * Create a table.
+	 * @param concurrency Roughly how many threads will be using it at once.
+	 * @param ttl How long (in milliseconds) an entry lives after its last
+	 *   refresh().
+	 */
+	RoutingTable(int concurrency, long ttl) {
+		int n = 16;
+		while (n < concurrency * 8)
+			n <<= 1;
+		this.ttl = ttl;
+		long now = System.currentTimeMillis();
+		segments = new Segment[n];
+		for (int i = 0; i < n; ++i)
+			segments[i] = new Segment(INITIAL_SEGMENT_CAPACITY, ttl, now);
+		segmentShift = 32 - Integer.numberOfTrailingZeros(n);
+	}
+
+	Segment segmentFor(RouterKey key) {
+		return segments[key.hash >>> segmentShift];
+	}
+
+	/**
+	 * Find where to route to.
+	 * @param key The receiver.
+	 * @param now Current time in milliseconds.
+	 * @return The receiver's address, or null if we don't know about it or if
+	 *   its entry has expired.
+	 */
+	InetSocketAddress lookup(RouterKey key, long now) {
+		Segment s = segmentFor(key);
+		synchronized (s) {
+			int i = s.find(key);
+			if (i < 0 || s.lastSeen[i] + ttl <= now)
+				return null;
+			return s.address(i);
+		}
+	}
+
+	/**
+	 * Add or refresh the entry of a peer we just heard from.
+	 * @param key The sender.
+	 * @param address Where the sender's packet came from.
+	 * @param now Current time in milliseconds.
+	 * @return true if the peer wasn't in the table.
+	 */
+	boolean refresh(RouterKey key, InetSocketAddress address, long now) {
+		Segment s = segmentFor(key);
+		synchronized (s) {
+			return s.refresh(key, address, now);
+		}
+	}
+
+	/**
+	 * Gets called back by forEach() for every live entry.
+	 */
+	interface Visitor {
+		void visit(RouterKey key);
+	}
+
+	/**
+	 * Visit every live entry. The visitor is called with the entry's segment
+	 *   locked, so it should be quick, and it must not touch this table.
+	 * @param key A scratch key that gets loaded with each entry's key.
+	 * @param visitor Who to call.
+	 * @param now Current time in milliseconds.
+	 */
+	void forEach(RouterKey key, Visitor visitor, long now) {
+		for (Segment s : segments) {
+			synchronized (s) {
+				for (int i = 0; i <= s.mask; ++i) {
+					if (s.isEmpty(i) || s.lastSeen[i] + ttl <= now)
+						continue;
+					int k = i << 2;
+					key.w0 = s.keys[k];
+					key.w1 = s.keys[k + 1];
+					key.w2 = s.keys[k + 2];
+					key.w3 = s.keys[k + 3];
+					key.hash = s.hashes[i];
+					visitor.visit(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reclaim the slots of expired entries by advancing every segment's 
+	 *   lease timers. Only the timers that are due are looked at, so this is
+	 *   cheap to call often (e.g. every LEASE_TICK).
+	 * @param now Current time in milliseconds.
+	 * @return How many entries were removed.
+	 */
+	int expire(long now) {
+		int removed = 0;
+		for (Segment s : segments) {
+			synchronized (s) {
+				int before = s.count;
+				s.leases.advance(now, s);
+				removed += before - s.count;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * @return How many entries the table currently holds (including expired
+	 *   ones that haven't been swept yet).
+	 */
+	int size() {
+		int size = 0;
+		for (Segment s : segments) {
+			synchronized (s) {
+				size += s.count;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return How many entries were ever added to the table.
+	 */
+	long getInserts() {
+		long n = 0;
+		for (Segment s : segments) {
+			synchronized (s) {
+				n += s.inserts;
+			}
+		}
+		return n;
+	}
+	
+	/**
+	 * @return How many times a known peer showed up from another address.
+	 */
+	long getAddressChanges() {
+		long n = 0;
+		for (Segment s : segments) {
+			synchronized (s) {
+				n += s.addressChanges;
+			}
+		}
+		return n;
+	}
+	
+	/**
+	 * @return How many entries were ever removed because they expired.
+	 */
+	long getExpirations() {
+		long n = 0;
+		for (Segment s : segments) {
+			synchronized (s) {
+				n += s.expirations;
+			}
+		}
+		return n;
+	}
+
+	// Bytes per entry in a snapshot: the key (32), the address (16), the
+	//   port (4), padding (4) and lastSeen (8), all big-endian.
+	static final int SNAPSHOT_RECORD_SIZE = 64;
+
+	/**
+	 * Write every live entry as a snapshot record (see SNAPSHOT_RECORD_SIZE)
+	 *   at out's position, stopping early if out fills up. Segments are
+	 *   locked one at a time, so the workers keep running meanwhile.
+	 * @param out Where to write to.
+	 * @param now Current time in milliseconds.
+	 * @return How many records were written.
+	 */
+	int writeTo(ByteBuffer out, long now) {
+		int written = 0;
+		for (Segment s : segments) {
+			synchronized (s) {
+				written += s.writeTo(out, now);
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Add the entries of the snapshot records between in's position and 
+	 *   limit. Records that have expired by now are skipped.
+	 * @param in Where to read from.
+	 * @param now Current time in milliseconds.
+	 * @return How many entries were restored.
+	 */
+	int readFrom(ByteBuffer in, long now) {
+		RouterKey key = new RouterKey();
+		int restored = 0;
+		while (in.remaining() >= SNAPSHOT_RECORD_SIZE) {
+			int off = in.position();
+			in.position(off + SNAPSHOT_RECORD_SIZE);
+			key.load(in, off);
+			long seen = in.getLong(off + 56);
+			if (key.isZero() || seen + ttl <= now)
+				continue;
+			Segment s = segmentFor(key);
+			synchronized (s) {
+				s.restore(key, in.getLong(off + 32), in.getLong(off + 40), in.getInt(off + 48), seen, now);
+			}
+			++restored;
+		}
+		return restored;
+	}
+
+	// The IPv4-mapped IPv6 prefix (::ffff:0:0/96) in the high bits of addrLo.
+	static final long IPV4_MAPPED = 0x0000ffff00000000L;
+
+	/**
+	 * One independently locked open-addressing table, with the lease timers
+	 *   of its entries (timer id == slot index).
+	 */
+	static class Segment implements TimingWheel.Handler {
+
+		// Slot i uses keys[4*i .. 4*i+3]; an all-zeroes key is an empty slot
+		//   (the all-zeroes NetId is the router's own ping address, so it's
+		//   never a valid entry).
+		long[] keys;
+		int[] hashes;
+		long[] addrHi;
+		long[] addrLo;
+		int[] ports;
+		long[] lastSeen;
+		InetSocketAddress[] cache;
+
+		int mask;
+		int count;
+		int threshold;
+
+		final long ttl;
+		TimingWheel leases;
+		
+		// Churn statistics
+		long inserts;
+		long addressChanges;
+		long expirations;
+
+		Segment(int capacity, long ttl, long now) {
+			this.ttl = ttl;
+			allocate(capacity);
+			leases = new TimingWheel(capacity, LEASE_TICK, now);
+		}
+
+		final void allocate(int capacity) {
+			keys = new long[capacity * 4];
+			hashes = new int[capacity];
+			addrHi = new long[capacity];
+			addrLo = new long[capacity];
+			ports = new int[capacity];
+			lastSeen = new long[capacity];
+			cache = new InetSocketAddress[capacity];
+			mask = capacity - 1;
+			threshold = (int)(capacity * LOAD_FACTOR);
+		}
+
+		int capacity() {
+			return mask + 1;
+		}
+
+		boolean isEmpty(int i) {
+			int k = i << 2;
+			return (keys[k] | keys[k + 1] | keys[k + 2] | keys[k + 3]) == 0;
+		}
+
+		// Home slot of a hash. Mixed so that it doesn't use the same bits
+		//   that picked the segment.
+		int home(int hash) {
+			return (hash ^ (hash >>> 16)) * 0x9E3779B1 >>> 7 & mask;
+		}
+
+		// Slot index of key, or -1.
+		int find(RouterKey key) {
+			for (int i = home(key.hash); ; i = (i + 1) & mask) {
+				if (isEmpty(i))
+					return -1;
+				int k = i << 2;
+				if (hashes[i] == key.hash && keys[k] == key.w0 && keys[k + 1] == key.w1
+						&& keys[k + 2] == key.w2 && keys[k + 3] == key.w3)
+					return i;
+			}
+		}
+
+		boolean refresh(RouterKey key, InetSocketAddress address, long now) {
+			int i = find(key);
+			boolean inserted = i < 0;
+			if (inserted) {
+				i = insert(key, now, now);
+				setAddress(i, address);
+			} else if (! sameAddress(i, address)) {
+				++addressChanges;
+				setAddress(i, address);
+			}
+			lastSeen[i] = now;
+			return inserted;
+		}
+
+		// Claim a slot for a key that isn't in the segment and arm its lease
+		//   for seen + ttl. The caller fills in the address.
+		int insert(RouterKey key, long seen, long now) {
+			if (count >= threshold) {
+				rehash(capacity() * 2, now);
+			}
+			int i = home(key.hash);
+			while (! isEmpty(i))
+				i = (i + 1) & mask;
+			int k = i << 2;
+			keys[k] = key.w0;
+			keys[k + 1] = key.w1;
+			keys[k + 2] = key.w2;
+			keys[k + 3] = key.w3;
+			hashes[i] = key.hash;
+			++count;
+			++inserts;
+			lastSeen[i] = seen;
+			leases.schedule(i, seen + ttl);
+			return i;
+		}
+
+		// Put back an entry read from a snapshot, unless we already have a 
+		//   fresher one (a peer may have shown up before we got to it).
+		void restore(RouterKey key, long hi, long lo, int port, long seen, long now) {
+			int i = find(key);
+			if (i < 0) {
+				i = insert(key, seen, now);
+			} else if (lastSeen[i] >= seen) {
+				return;
+			}
+			addrHi[i] = hi;
+			addrLo[i] = lo;
+			ports[i] = port;
+			lastSeen[i] = seen;
+			cache[i] = null;
+		}
+
+		// Append the live entries to out, as long as they fit.
+		int writeTo(ByteBuffer out, long now) {
+			int written = 0;
+			for (int i = 0; i <= mask; ++i) {
+				if (isEmpty(i) || lastSeen[i] + ttl <= now)
+					continue;
+				if (out.remaining() < SNAPSHOT_RECORD_SIZE)
+					break;
+				int k = i << 2;
+				out.putLong(keys[k]);
+				out.putLong(keys[k + 1]);
+				out.putLong(keys[k + 2]);
+				out.putLong(keys[k + 3]);
+				out.putLong(addrHi[i]);
+				out.putLong(addrLo[i]);
+				out.putInt(ports[i]);
+				out.putInt(0);
+				out.putLong(lastSeen[i]);
+				++written;
+			}
+			return written;
+		}
+
+		// Compare the stored address without building anything. IPv4 is
+		//   free (Inet4Address.hashCode() is the address itself); IPv6 has to
+		//   go through getAddress(), which clones.
+		boolean sameAddress(int i, InetSocketAddress address) {
+			if (ports[i] != address.getPort())
+				return false;
+			InetAddress a = address.getAddress();
+			if (a instanceof Inet4Address)
+				return addrHi[i] == 0 && addrLo[i] == (IPV4_MAPPED | (a.hashCode() & 0xffffffffL));
+			byte[] b = a.getAddress();
+			return addrHi[i] == getLong(b, 0) && addrLo[i] == getLong(b, 8);
+		}
+
+		void setAddress(int i, InetSocketAddress address) {
+			InetAddress a = address.getAddress();
+			if (a instanceof Inet4Address) {
+				addrHi[i] = 0;
+				addrLo[i] = IPV4_MAPPED | (a.hashCode() & 0xffffffffL);
+			} else {
+				byte[] b = a.getAddress();
+				addrHi[i] = getLong(b, 0);
+				addrLo[i] = getLong(b, 8);
+			}
+			ports[i] = address.getPort();
+			cache[i] = null;
+		}
+
+		// Build (once) the InetSocketAddress of a slot.
+		InetSocketAddress address(int i) {
+			InetSocketAddress a = cache[i];
+			if (a == null) {
+				byte[] b = new byte[16];
+				putLong(b, 0, addrHi[i]);
+				putLong(b, 8, addrLo[i]);
+				try {
+					// This gives us back an Inet4Address for IPv4-mapped ones.
+					a = new InetSocketAddress(InetAddress.getByAddress(b), ports[i]);
+				} catch (UnknownHostException ex) {
+					return null; // can't happen with a 16-byte array
+				}
+				cache[i] = a;
+			}
+			return a;
+		}
+
+		// A lease timer went off. If the entry was refreshed since the timer
+		//   was armed, re-arm it for the new deadline, otherwise it's gone.
+		@Override
+		public void expired(int i) {
+			long deadline = lastSeen[i] + ttl;
+			if (deadline > leases.getDeadline(i)) {
+				leases.schedule(i, deadline);
+			} else {
+				++expirations;
+				remove(i);
+			}
+		}
+
+		// Backward-shift deletion: pull later entries of the probe sequence
+		//   into the hole so that no tombstones are needed.
+		void remove(int i) {
+			leases.cancel(i);
+			int j = i;
+			while (true) {
+				j = (j + 1) & mask;
+				if (isEmpty(j))
+					break;
+				int h = home(hashes[j]);
+				// Entry at j can stay if its home is cyclically in (i, j].
+				if (i <= j ? (i < h && h <= j) : (i < h || h <= j))
+					continue;
+				move(j, i);
+				i = j;
+			}
+			clear(i);
+			--count;
+		}
+
+		void move(int from, int to) {
+			System.arraycopy(keys, from << 2, keys, to << 2, 4);
+			hashes[to] = hashes[from];
+			addrHi[to] = addrHi[from];
+			addrLo[to] = addrLo[from];
+			ports[to] = ports[from];
+			lastSeen[to] = lastSeen[from];
+			cache[to] = cache[from];
+			leases.schedule(to, leases.getDeadline(from));
+			leases.cancel(from);
+		}
+
+		void clear(int i) {
+			int k = i << 2;
+			keys[k] = keys[k + 1] = keys[k + 2] = keys[k + 3] = 0;
+			cache[i] = null;
+		}
+
+		void rehash(int capacity, long now) {
+			long[] oldKeys = keys;
+			int[] oldHashes = hashes;
+			long[] oldAddrHi = addrHi;
+			long[] oldAddrLo = addrLo;
+			int[] oldPorts = ports;
+			long[] oldLastSeen = lastSeen;
+			InetSocketAddress[] oldCache = cache;
+			TimingWheel oldLeases = leases;
+			int oldCapacity = capacity();
+			allocate(capacity);
+			leases = new TimingWheel(capacity, LEASE_TICK, now);
+			for (int j = 0; j < oldCapacity; ++j) {
+				int k = j << 2;
+				if ((oldKeys[k] | oldKeys[k + 1] | oldKeys[k + 2] | oldKeys[k + 3]) == 0)
+					continue;
+				int i = home(oldHashes[j]);
+				while (! isEmpty(i))
+					i = (i + 1) & mask;
+				System.arraycopy(oldKeys, k, keys, i << 2, 4);
+				hashes[i] = oldHashes[j];
+				addrHi[i] = oldAddrHi[j];
+				addrLo[i] = oldAddrLo[j];
+				ports[i] = oldPorts[j];
+				lastSeen[i] = oldLastSeen[j];
+				cache[i] = oldCache[j];
+				leases.schedule(i, oldLeases.getDeadline(j));
+			}
+		}
+	}
+
+	static long getLong(byte[] b, int off) {
+		long v = 0;
+		for (int i = 0; i < 8; ++i)
+			v = (v << 8) | (b[off + i] & 0xff);
+		return v;
+	}
+
+	static void putLong(byte[] b, int off, long v) {
+		for (int i = 7; i >= 0; --i) {
+			b[off + i] = (byte)v;
+			v >>>= 8;
+		}
+	}
+}
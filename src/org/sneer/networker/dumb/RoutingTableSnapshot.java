@@ -0,0 +1,103 @@
+package org.sneer.networker.dumb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Saves and loads a RoutingTable to and from a memory-mapped file, so that a
+ *   restarted router can route to everyone it knew right away instead of
+ *   waiting for every device to ping it again.
+ *
+ * The file is a 32-byte header (magic, version, record size, record count,
+ *   save time) followed by the records written by RoutingTable.writeTo().
+ *   Entries carry their lastSeen (wall-clock time), so whatever expired
+ *   while the router was down is simply skipped when loading.
+ *
+ * A snapshot is written to a temporary file next to the real one, forced to
+ *   disk and then renamed over it, so a crash while saving leaves the previous
+ *   snapshot intact. Mapping the file lets the table be dumped with plain
+ *   absolute puts and no intermediate copies, segment by segment.
+ *
+ * Internal helper for this package.
+ */
+class RoutingTableSnapshot {
+
+	static final int MAGIC = 0x444e5254; // "DNRT"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 32;
+
+	/**
+	 * Save a table.
+	 * @param table The table.
+	 * @param file The snapshot file (replaced if it exists).
+	 * @param now Current time in milliseconds.
+	 * @return How many entries were saved.
+	 * @throws IOException If the file can't be written.
+	 */
+	static int save(RoutingTable table, File file, long now) throws IOException {
+		Path path = file.toPath();
+		Path tmp = new File(file.getPath() + ".tmp").toPath();
+
+		// Leave some room for entries added while we're at it; if even that
+		//   isn't enough the newest ones just wait for the next snapshot.
+		int size = table.size();
+		long length = HEADER_SIZE + (long)(size + size / 8 + 64) * RoutingTable.SNAPSHOT_RECORD_SIZE;
+
+		int count;
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+			buf.position(HEADER_SIZE);
+			count = table.writeTo(buf, now);
+			buf.putInt(0, MAGIC);
+			buf.putInt(4, VERSION);
+			buf.putInt(8, RoutingTable.SNAPSHOT_RECORD_SIZE);
+			buf.putInt(12, count);
+			buf.putLong(16, now);
+			buf.force();
+		}
+
+		try {
+			Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+		return count;
+	}
+
+	/**
+	 * Load a snapshot into a table.
+	 * @param table The table.
+	 * @param file The snapshot file.
+	 * @param now Current time in milliseconds.
+	 * @return How many entries were restored (0 if there's no such file).
+	 * @throws IOException If the file can't be read or isn't a snapshot.
+	 */
+	static int load(RoutingTable table, File file, long now) throws IOException {
+		if (! file.exists())
+			return 0;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long length = channel.size();
+			if (length < HEADER_SIZE)
+				throw new IOException("Not a routing table snapshot: " + file);
+			ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			if (buf.getInt(0) != MAGIC)
+				throw new IOException("Not a routing table snapshot: " + file);
+			if (buf.getInt(4) != VERSION || buf.getInt(8) != RoutingTable.SNAPSHOT_RECORD_SIZE)
+				throw new IOException("Unsupported routing table snapshot version: " + file);
+			long count = buf.getInt(12) & 0xffffffffL;
+			long end = Math.min(length, HEADER_SIZE + count * RoutingTable.SNAPSHOT_RECORD_SIZE);
+			buf.position(HEADER_SIZE);
+			buf.limit((int)end);
+			return table.readFrom(buf, now);
+		}
+	}
+}
@@ -0,0 +1,268 @@
+package org.sneer.networker.loopback;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.sneer.networker.BatchDeviceListener;
+import org.sneer.networker.DeviceListener;
+import org.sneer.networker.MeasuredDevice;
+import org.sneer.networker.NetId;
+import org.sneer.networker.Networker;
+
+/**
+ * A Device that only reaches the other LoopbackDevices of its registry,
+ *   which are in this process: datagrams are copied into the receiver's
+ *   inbox (a lock-free queue) and delivered by the registry's thread,
+ *   without any socket in between. That takes microseconds instead of a
+ *   round trip to a router.
+ *
+ * It behaves like the real thing otherwise: the receiver is called back
+ *   from another thread, never from send(), and datagrams to nobody, or to
+ *   somebody whose inbox is full (MAX_PENDING), are silently lost.
+ *
+ * A DumbNetworker has one of these in the default registry, and sends
+ *   through it whenever the receiver is there. On its own it's a transport
+ *   for tests and benchmarks that needs no sockets at all.
+ */
+public class LoopbackDevice implements MeasuredDevice, Closeable {
+
+	/**
+	 * The most datagrams waiting in an inbox; more are dropped.
+	 */
+	public static final int MAX_PENDING = 4096;
+
+	// What getRttNanos() says for the devices we reach: less than any real
+	//   network's.
+	static final long LOCAL_RTT = 1000;
+
+	// The most datagrams in one batch to the listener.
+	static final int MAX_BATCH = 64;
+
+	// A datagram in an inbox (a copy of its own).
+	static final class Packet {
+
+		final NetId sender;
+		final byte[] data;
+
+		Packet(NetId sender, byte[] data) {
+			this.sender = sender;
+			this.data = data;
+		}
+	}
+
+	final Networker networker;
+	final DeviceListener listener;
+	final LoopbackRegistry registry;
+	final NetId localId;
+
+	// Whether we have our NetId in the registry (another device of the same
+	//   NetId may have it, or we may have left it).
+	volatile boolean registered;
+	volatile boolean closed;
+
+	// Inbox: the queue, how many are in it, and whether we're in the
+	//   registry's ready queue already.
+	final ConcurrentLinkedQueue<Packet> inbox = new ConcurrentLinkedQueue<>();
+	final AtomicInteger pending = new AtomicInteger();
+	final AtomicBoolean scheduled = new AtomicBoolean();
+
+	// Only touched by the registry's thread.
+	final NetId[] senders = new NetId[MAX_BATCH];
+	final ByteBuffer[] data = new ByteBuffer[MAX_BATCH];
+
+	/**
+	 * A device for networker, in the default registry.
+	 * @param networker The networker that has this (and whose NetId we use).
+	 * @param listener Who gets what arrives.
+	 */
+	public LoopbackDevice(Networker networker, DeviceListener listener) {
+		this(networker, listener, LoopbackRegistry.getDefault());
+	}
+
+	/**
+	 * @param networker The networker that has this (and whose NetId we use).
+	 * @param listener Who gets what arrives.
+	 * @param registry Where the devices we can reach are.
+	 */
+	public LoopbackDevice(Networker networker, DeviceListener listener, LoopbackRegistry registry) {
+		this.networker = networker;
+		this.listener = listener;
+		this.registry = registry;
+		this.localId = networker.getId();
+		this.registered = registry.register(this);
+	}
+
+	@Override
+	public Networker getNetworker() {
+		return networker;
+	}
+
+	@Override
+	public DeviceListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * @return false if another device of the registry has our NetId (so
+	 *   nothing sent to it comes to us).
+	 */
+	public boolean isRegistered() {
+		return registered;
+	}
+
+	/**
+	 * Leave the registry for the time being, so nobody reaches us through
+	 *   it, or come back (which fails if another device has taken our NetId
+	 *   in the meantime). Leaving doesn't keep us from sending.
+	 * @param register Whether to be in the registry.
+	 * @return isRegistered(), after this.
+	 */
+	public synchronized boolean setRegistered(boolean register) {
+		if (closed || register == registered)
+			return registered;
+		if (register)
+			registered = registry.register(this);
+		else {
+			registry.unregister(this);
+			registered = false;
+		}
+		return registered;
+	}
+
+	/**
+	 * @param receiver A NetId.
+	 * @return true if it's in our registry.
+	 */
+	public boolean isLocal(NetId receiver) {
+		return registry.get(receiver) != null;
+	}
+
+	/**
+	 * @param receiver A NetId.
+	 * @return A nominal microsecond if it's in our registry, else 
+	 *   UNREACHABLE.
+	 */
+	@Override
+	public long getRttNanos(NetId receiver) {
+		return isLocal(receiver) ? LOCAL_RTT : UNREACHABLE;
+	}
+
+	/**
+	 * Leave the registry, for good. Whatever is in our inbox is dropped.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		if (registered)
+			registry.unregister(this);
+		registered = false;
+		inbox.clear();
+	}
+
+	/*
+	 * Sending.
+	 */
+
+	@Override
+	public void send(NetId receiver, byte[] data) {
+		deliver(receiver, data, 0, data.length);
+	}
+
+	@Override
+	public void send(NetId receiver, byte[] data, int offset, int length) {
+		deliver(receiver, data, offset, length);
+	}
+
+	@Override
+	public void send(NetId receiver, ByteBuffer data) {
+		deliver(receiver, data);
+	}
+
+	/**
+	 * Send, if the receiver is here.
+	 * @param receiver Who it's for.
+	 * @param data Where the datagram is.
+	 * @param offset Where in data it starts.
+	 * @param length How many bytes it has.
+	 * @return false if the receiver isn't in our registry (true if it is,
+	 *   even if its inbox was full and the datagram was dropped).
+	 */
+	public boolean deliver(NetId receiver, byte[] data, int offset, int length) {
+		LoopbackDevice to = registry.get(receiver);
+		if (to == null || closed)
+			return to != null;
+		byte[] copy = new byte[length];
+		System.arraycopy(data, offset, copy, 0, length);
+		to.enqueue(new Packet(localId, copy));
+		return true;
+	}
+
+	/**
+	 * Same, for the bytes between a buffer's position and limit (which are
+	 *   left as they were).
+	 * @param receiver Who it's for.
+	 * @param data What's to be sent.
+	 * @return false if the receiver isn't in our registry.
+	 */
+	public boolean deliver(NetId receiver, ByteBuffer data) {
+		LoopbackDevice to = registry.get(receiver);
+		if (to == null || closed)
+			return to != null;
+		byte[] copy = new byte[data.remaining()];
+		data.duplicate().get(copy);
+		to.enqueue(new Packet(localId, copy));
+		return true;
+	}
+
+	/*
+	 * Receiving.
+	 */
+
+	void enqueue(Packet packet) {
+		if (pending.incrementAndGet() > MAX_PENDING) {
+			pending.decrementAndGet();
+			return; // full: lost, as it would be by a socket
+		}
+		inbox.add(packet);
+		if (! scheduled.get() && scheduled.compareAndSet(false, true))
+			registry.ready(this);
+	}
+
+	// In the registry's thread: hand the listener a batch of what's in the
+	//   inbox, and get back in line if there's more.
+	void deliver() {
+		scheduled.set(false);
+		int count = 0;
+		Packet packet;
+		while (count < MAX_BATCH && (packet = inbox.poll()) != null) {
+			pending.decrementAndGet();
+			if (closed)
+				continue;
+			try {
+				if (listener instanceof BatchDeviceListener) {
+					senders[count] = packet.sender;
+					data[count] = ByteBuffer.wrap(packet.data).asReadOnlyBuffer();
+				} else {
+					listener.receive(packet.sender, packet.data);
+				}
+			} catch (RuntimeException ex) {
+				// Not our problem, and it mustn't kill the registry's thread.
+			}
+			++count;
+		}
+		if (count > 0 && listener instanceof BatchDeviceListener && ! closed) {
+			try {
+				((BatchDeviceListener)listener).receiveBatch(senders, data, count);
+			} catch (RuntimeException ex) {
+			}
+		}
+		for (int i = 0; i < count; ++i) {
+			senders[i] = null;
+			data[i] = null;
+		}
+		if (! inbox.isEmpty() && scheduled.compareAndSet(false, true))
+			registry.ready(this);
+	}
+}
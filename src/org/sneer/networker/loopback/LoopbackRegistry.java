@@ -0,0 +1,139 @@
+package org.sneer.networker.loopback;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import org.sneer.networker.NetId;
+
+/**
+ * The LoopbackDevices of one process (or of one test), by NetId, and the
+ *   thread that delivers what they send each other.
+ *
+ * A LoopbackDevice with something waiting in its inbox is put in the ready
+ *   queue (once), and the delivery thread takes devices from there and hands
+ *   each its inbox, a batch at a time. Nothing here takes a lock: senders
+ *   only add to queues and unpark the thread if it's sleeping.
+ *
+ * All the devices of a registry are called back from its one thread, so a
+ *   slow listener holds up all of them (see util.Dispatcher for that).
+ *   The thread is a daemon, started when the first device registers.
+ *
+ * Devices should be close()d when done with (a DumbNetworker does that when
+ *   it's killed), but the registry only holds on to them weakly: one that
+ *   is dropped without closing leaves the registry, and stops being
+ *   reachable, once it's garbage collected.
+ */
+public class LoopbackRegistry implements Runnable {
+
+	private static final LoopbackRegistry shared = new LoopbackRegistry();
+
+	/**
+	 * @return The registry of this process, where DumbNetworkers look for
+	 *   each other.
+	 */
+	public static LoopbackRegistry getDefault() {
+		return shared;
+	}
+
+	// A registered device, for as long as somebody else holds on to it.
+	static final class DeviceRef extends WeakReference<LoopbackDevice> {
+		
+		final NetId id;
+		
+		DeviceRef(LoopbackDevice device, ReferenceQueue<LoopbackDevice> queue) {
+			super(device, queue);
+			this.id = device.localId;
+		}
+	}
+	
+	final ConcurrentHashMap<NetId, DeviceRef> devices = new ConcurrentHashMap<>();
+	final ReferenceQueue<LoopbackDevice> collected = new ReferenceQueue<>();
+	final ConcurrentLinkedQueue<LoopbackDevice> ready = new ConcurrentLinkedQueue<>();
+
+	private volatile Thread thread;
+	private volatile boolean idle;
+
+	/**
+	 * @param id A NetId.
+	 * @return The device registered with it, or null if there's none here.
+	 */
+	public LoopbackDevice get(NetId id) {
+		DeviceRef ref = devices.get(id);
+		return ref == null ? null : ref.get();
+	}
+
+	/**
+	 * @return How many devices are registered.
+	 */
+	public int size() {
+		expunge();
+		return devices.size();
+	}
+
+	// false if somebody else here has that NetId already (a collected 
+	//   device doesn't count).
+	boolean register(LoopbackDevice device) {
+		expunge();
+		DeviceRef ref = new DeviceRef(device, collected);
+		while (true) {
+			DeviceRef old = devices.putIfAbsent(device.localId, ref);
+			if (old == null)
+				break;
+			if (old.get() != null)
+				return false;
+			if (devices.replace(device.localId, old, ref))
+				break;
+		}
+		if (thread == null)
+			start();
+		return true;
+	}
+
+	void unregister(LoopbackDevice device) {
+		DeviceRef ref = devices.get(device.localId);
+		if (ref != null && ref.get() == device)
+			devices.remove(device.localId, ref);
+	}
+	
+	// Forget the devices that were collected without being closed.
+	private void expunge() {
+		DeviceRef ref;
+		while ((ref = (DeviceRef)collected.poll()) != null)
+			devices.remove(ref.id, ref);
+	}
+
+	private synchronized void start() {
+		if (thread != null)
+			return;
+		Thread t = new Thread(this, "LoopbackRegistry");
+		t.setDaemon(true);
+		t.start();
+		thread = t;
+	}
+
+	// device has something in its inbox (and wasn't ready already).
+	void ready(LoopbackDevice device) {
+		ready.add(device);
+		if (idle)
+			LockSupport.unpark(thread);
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			LoopbackDevice device = ready.poll();
+			if (device == null) {
+				// Nothing to do: sleep, unless something came in after the
+				//   poll() and before its sender could see we're idle.
+				idle = true;
+				if (ready.isEmpty())
+					LockSupport.park(this);
+				idle = false;
+				continue;
+			}
+			device.deliver();
+		}
+	}
+}
@@ -18,7 +18,9 @@ import org.sneer.networker.NetId;
  *   want your UDP datagram to be fragmented into a hundred IP fragments then 
  *   you shouldn't be sending things over e.g. 1,024 bytes with this thing, 
  *   or perhaps 1,280 bytes for the IPv6 guaranteed minimum MTU, or slightly 
- *   less than that probably, let's say, 1,100 bytes?
+ *   less than that probably, let's say, 1,100 bytes? (A DumbNetworker can 
+ *   also split what you send into datagrams that small for you, and put 
+ *   them back together at the other end: see DumbNetworker.setMtu().)
  *
  * NOTE: There can be a layer on top of this, such as MultipartMessenger,
  *   that knows how to send large messages by sending each fragment as a 
@@ -0,0 +1,179 @@
+package org.sneer.networker.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A pool of reusable byte buffers, handed out as Leases.
+ *
+ * Buffers come in a few size classes (powers of four from 256 bytes to 64 KB,
+ *   which covers any UDP datagram), and lease() picks the smallest class that
+ *   fits. Every buffer has its Lease object attached for good, so once the
+ *   pool has warmed up, leasing and releasing don't allocate anything.
+ *
+ * Released buffers are kept for reuse up to a byte budget per size class;
+ *   beyond that they're just left to the garbage collector. So a burst can
+ *   make the pool allocate, but it never holds on to more than the budget.
+ *
+ * This is thread-safe: a buffer can be leased in one thread and released in
+ *   another.
+ */
+public class BufferPool {
+
+	// Smallest class is 1 << MIN_SHIFT bytes, and every class is four
+	//   times the previous one.
+	static final int MIN_SHIFT = 8;
+	static final int CLASSES = 5;
+
+	/**
+	 * The largest buffer the pool has (bigger leases aren't pooled).
+	 */
+	public static final int MAX_POOLED_SIZE = 1 << (MIN_SHIFT + 2 * (CLASSES - 1));
+
+	/**
+	 * Default budget of pooled bytes per size class.
+	 */
+	public static final int DEFAULT_BYTES_PER_CLASS = 4 * 1024 * 1024;
+
+	// Free leases per class, used as stacks.
+	final Lease[][] free = new Lease[CLASSES][];
+	final int[] freeCount = new int[CLASSES];
+
+	// How many buffers were ever created (to see if we're in steady state).
+	volatile long allocations;
+
+	/**
+	 * A pool keeping up to DEFAULT_BYTES_PER_CLASS bytes per size class.
+	 */
+	public BufferPool() {
+		this(DEFAULT_BYTES_PER_CLASS);
+	}
+
+	/**
+	 * @param bytesPerClass How many bytes worth of released buffers to keep
+	 *   per size class.
+	 */
+	public BufferPool(int bytesPerClass) {
+		for (int c = 0; c < CLASSES; ++c)
+			free[c] = new Lease[Math.max(1, bytesPerClass / classSize(c))];
+	}
+
+	static int classSize(int c) {
+		return 1 << (MIN_SHIFT + 2 * c);
+	}
+
+	static int classOf(int size) {
+		int c = 0;
+		while (c < CLASSES && classSize(c) < size)
+			++c;
+		return c; // CLASSES if it doesn't fit any
+	}
+
+	/**
+	 * Lease a buffer.
+	 * @param size How many bytes are needed.
+	 * @return A lease whose buffer() is cleared with its limit at size.
+	 */
+	public Lease lease(int size) {
+		int c = classOf(size);
+		Lease lease = null;
+		if (c < CLASSES) {
+			synchronized (free[c]) {
+				if (freeCount[c] > 0) {
+					lease = free[c][--freeCount[c]];
+					free[c][freeCount[c]] = null;
+				}
+			}
+		}
+		if (lease == null) {
+			lease = new Lease(this, c, c < CLASSES ? classSize(c) : size);
+			++allocations; // only a statistic, races don't matter
+		}
+		lease.leased.set(true);
+		lease.buffer.clear().limit(size);
+		return lease;
+	}
+
+	void release(Lease lease) {
+		int c = lease.sizeClass;
+		if (c >= CLASSES)
+			return;
+		synchronized (free[c]) {
+			if (freeCount[c] < free[c].length)
+				free[c][freeCount[c]++] = lease;
+		}
+	}
+
+	/**
+	 * @return How many buffers this pool has ever created. This stops going
+	 *   up once the pool has warmed up.
+	 */
+	public long getAllocations() {
+		return allocations;
+	}
+
+	/**
+	 * A leased buffer. Whoever holds it must release() it exactly once when
+	 *   done with it, and not touch it (or anything obtained from it) after.
+	 */
+	public static final class Lease {
+
+		final BufferPool pool;
+		final int sizeClass;
+		final ByteBuffer buffer;
+		final ByteBuffer view;
+		// Cleared by exactly one release(): two racing ones can't both get
+		//   the buffer back in the pool.
+		final AtomicBoolean leased = new AtomicBoolean();
+
+		Lease(BufferPool pool, int sizeClass, int capacity) {
+			this.pool = pool;
+			this.sizeClass = sizeClass;
+			this.buffer = ByteBuffer.allocate(capacity);
+			this.view = buffer.asReadOnlyBuffer();
+		}
+
+		/**
+		 * @return The writable buffer, for whoever fills the lease in.
+		 */
+		public ByteBuffer buffer() {
+			return buffer;
+		}
+
+		/**
+		 * @return A read-only view of the contents (0 to the buffer's limit).
+		 *   It's always the same view object, reset on every call.
+		 */
+		public ByteBuffer data() {
+			view.limit(buffer.limit()).position(0);
+			return view;
+		}
+
+		/**
+		 * @return The number of bytes of contents.
+		 */
+		public int size() {
+			return buffer.limit();
+		}
+
+		/**
+		 * Opt-in copy, for those who want to keep the contents after
+		 *   releasing the lease.
+		 * @return A new array with the contents.
+		 */
+		public byte[] copy() {
+			return Arrays.copyOf(buffer.array(), buffer.limit());
+		}
+
+		/**
+		 * Give the buffer back to the pool.
+		 * @throws IllegalStateException If it was already released.
+		 */
+		public void release() {
+			if (! leased.compareAndSet(true, false))
+				throw new IllegalStateException("Lease released twice");
+			pool.release(this);
+		}
+	}
+}
@@ -0,0 +1,358 @@
+package org.sneer.networker.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.sneer.networker.BatchNetworkerListener;
+import org.sneer.networker.LeaseNetworkerListener;
+import org.sneer.networker.NetId;
+import org.sneer.networker.NetworkerListener;
+
+/**
+ * A NetworkerListener that hands incoming datagrams over to another one in
+ *   other threads, so the Networker's network thread goes back to draining
+ *   its socket right away instead of waiting for the application. Set it as
+ *   the Networker's listener, wrapping the real one:
+ *
+ *   networker.setListener(new Dispatcher(myListener, executor));
+ *
+ * Datagrams are queued in lanes by sender, and each lane is served by one
+ *   executor task at a time, so what comes from any given sender still
+ *   arrives in order (and never concurrently), while different senders are
+ *   served in parallel. Any Executor will do: a thread pool, or on recent
+ *   JVMs one virtual thread per task. Several Dispatchers (e.g. of the
+ *   DumbNetworkers on a hub) can share one executor.
+ *
+ * Every lane is bounded. When one is full, the Overflow policy decides what
+ *   goes: the new datagram, the oldest one in the lane, or nothing (BLOCK,
+ *   which makes the network thread wait for the application after all, and
+ *   lets the kernel drop datagrams instead of us).
+ *
+ * Queued datagrams are copied into buffers leased from a BufferPool, which
+ *   a LeaseNetworkerListener gets to keep; a BatchNetworkerListener gets them
+ *   in batches, as usual; any other one gets byte[]s. killed() is passed on
+ *   right away, and whatever is still queued then is dropped.
+ */
+public class Dispatcher implements BatchNetworkerListener {
+
+	/**
+	 * What to do with a datagram that arrives when its lane is full.
+	 */
+	public enum Overflow {
+		/** Drop it. */
+		DROP_NEWEST,
+		/** Drop the oldest datagram in the lane to make room for it. */
+		DROP_OLDEST,
+		/** Wait for room (this blocks the Networker's network thread). */
+		BLOCK
+	}
+
+	public static final int DEFAULT_LANES = 16;
+	public static final int DEFAULT_LANE_CAPACITY = 1024;
+
+	// The most datagrams a lane delivers in one go before it lets other
+	//   lanes have the executor (and the most in a batch).
+	static final int MAX_RUN = 64;
+
+	final NetworkerListener target;
+	final Executor executor;
+	final Overflow overflow;
+	final int laneCapacity;
+	final Lane[] lanes;
+	final BufferPool pool;
+
+	volatile boolean killed;
+
+	// Metrics.
+	final AtomicInteger queued = new AtomicInteger();
+	final AtomicLong delivered = new AtomicLong();
+	final AtomicLong dropped = new AtomicLong();
+	volatile int maxQueued; // high-water mark, only a statistic
+
+	/**
+	 * A dispatcher with DEFAULT_LANES lanes of DEFAULT_LANE_CAPACITY each,
+	 *   dropping what doesn't fit.
+	 * @param target The listener to deliver to.
+	 * @param executor Where to run the deliveries.
+	 */
+	public Dispatcher(NetworkerListener target, Executor executor) {
+		this(target, executor, DEFAULT_LANES, DEFAULT_LANE_CAPACITY, Overflow.DROP_NEWEST, new BufferPool());
+	}
+
+	/**
+	 * @param target The listener to deliver to.
+	 * @param executor Where to run the deliveries.
+	 * @param lanes How many lanes to spread the senders over (at most this
+	 *   many deliveries run at once).
+	 * @param laneCapacity How many datagrams a lane holds at most.
+	 * @param overflow What to do when a lane is full.
+	 * @param pool Where the buffers for queued datagrams come from.
+	 */
+	public Dispatcher(NetworkerListener target, Executor executor, int lanes, int laneCapacity, Overflow overflow, BufferPool pool) {
+		if (lanes < 1 || laneCapacity < 1)
+			throw new IllegalArgumentException("lanes and laneCapacity must be positive");
+		this.target = target;
+		this.executor = executor;
+		this.overflow = overflow;
+		this.laneCapacity = laneCapacity;
+		this.pool = pool;
+		this.lanes = new Lane[lanes];
+		for (int i = 0; i < lanes; ++i)
+			this.lanes[i] = new Lane();
+	}
+
+	/*
+	 * NetworkerListener (called by the Networker's network thread)
+	 */
+
+	public void receive(NetId sender, byte[] data) {
+		// It's ours already, so no need to copy it, unless the target wants
+		//   a lease or a buffer.
+		if (target instanceof LeaseNetworkerListener || target instanceof BatchNetworkerListener)
+			enqueue(sender, copy(ByteBuffer.wrap(data)), null);
+		else
+			enqueue(sender, null, data);
+	}
+
+	public void receiveBatch(NetId[] senders, ByteBuffer[] data, int count) {
+		// The buffers are only good until we return: copy them.
+		boolean bytes = ! (target instanceof LeaseNetworkerListener || target instanceof BatchNetworkerListener);
+		for (int i = 0; i < count && ! killed; ++i) {
+			if (bytes) {
+				byte[] copy = new byte[data[i].remaining()];
+				data[i].get(copy);
+				enqueue(senders[i], null, copy);
+			} else {
+				enqueue(senders[i], copy(data[i]), null);
+			}
+		}
+	}
+
+	public void killed() {
+		killed = true;
+		for (Lane lane : lanes)
+			lane.clear();
+		target.killed();
+	}
+
+	/*
+	 * Metrics
+	 */
+
+	/**
+	 * @return How many datagrams are waiting to be delivered right now.
+	 */
+	public int getQueued() {
+		return queued.get();
+	}
+
+	/**
+	 * @return The most datagrams that were ever waiting at once.
+	 */
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+
+	/**
+	 * @return How many datagrams were delivered to the target.
+	 */
+	public long getDelivered() {
+		return delivered.get();
+	}
+
+	/**
+	 * @return How many datagrams were dropped because their lane was full
+	 *   (or the executor wouldn't take the lane, or we were killed).
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/*
+	 * Internals
+	 */
+
+	BufferPool.Lease copy(ByteBuffer data) {
+		BufferPool.Lease lease = pool.lease(data.remaining());
+		lease.buffer().put(data).flip();
+		return lease;
+	}
+
+	void enqueue(NetId sender, BufferPool.Lease lease, byte[] bytes) {
+		Lane lane = lanes[(sender.hashCode() & 0x7fffffff) % lanes.length];
+		Entry entry = new Entry(sender, lease, bytes);
+		if (! lane.add(entry))
+			entry.drop();
+	}
+
+	// A queued datagram: in a lease or in a byte[].
+	final class Entry {
+
+		final NetId sender;
+		final BufferPool.Lease lease;
+		final byte[] bytes;
+
+		Entry(NetId sender, BufferPool.Lease lease, byte[] bytes) {
+			this.sender = sender;
+			this.lease = lease;
+			this.bytes = bytes;
+		}
+
+		void drop() {
+			if (lease != null)
+				lease.release();
+			dropped.incrementAndGet();
+		}
+	}
+
+	// A queue of datagrams, delivered in order by one executor task at a
+	//   time: the lane itself, which is scheduled whenever it has something
+	//   and isn't scheduled already.
+	final class Lane implements Runnable {
+
+		final ArrayDeque<Entry> queue = new ArrayDeque<>();
+		boolean scheduled;
+
+		// Only touched by the task running the lane.
+		final NetId[] senders = new NetId[MAX_RUN];
+		final ByteBuffer[] data = new ByteBuffer[MAX_RUN];
+		final Entry[] run = new Entry[MAX_RUN];
+
+		// Add an entry, if the policy lets us. false means drop it.
+		boolean add(Entry entry) {
+			boolean schedule;
+			synchronized (this) {
+				while (queue.size() >= laneCapacity) {
+					if (killed)
+						return false;
+					if (overflow == Overflow.DROP_NEWEST)
+						return false;
+					if (overflow == Overflow.DROP_OLDEST) {
+						queue.poll().drop();
+						queued.decrementAndGet();
+						break;
+					}
+					try {
+						wait();
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+				}
+				if (killed)
+					return false;
+				queue.add(entry);
+				int depth = queued.incrementAndGet();
+				if (depth > maxQueued)
+					maxQueued = depth;
+				schedule = ! scheduled;
+				scheduled = true;
+			}
+			if (schedule)
+				schedule();
+			return true;
+		}
+
+		void schedule() {
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException ex) {
+				// The executor was shut down (or is saturated): nobody's
+				//   going to deliver these.
+				clear();
+			}
+		}
+
+		// Drop everything (and let the next add() schedule us again).
+		void clear() {
+			synchronized (this) {
+				Entry entry;
+				while ((entry = queue.poll()) != null) {
+					entry.drop();
+					queued.decrementAndGet();
+				}
+				scheduled = false;
+				notifyAll();
+			}
+		}
+
+		public void run() {
+			int count = 0;
+			synchronized (this) {
+				while (count < MAX_RUN) {
+					Entry entry = queue.poll();
+					if (entry == null)
+						break;
+					run[count++] = entry;
+				}
+				if (count == 0) {
+					scheduled = false;
+					return;
+				}
+				if (overflow == Overflow.BLOCK)
+					notifyAll(); // there's room now
+			}
+			queued.addAndGet(-count);
+
+			deliver(count);
+			for (int i = 0; i < count; ++i) {
+				senders[i] = null;
+				data[i] = null;
+				run[i] = null;
+			}
+			
+			// Go on in another task (if there's more), so the other lanes
+			//   get their turn.
+			boolean more;
+			synchronized (this) {
+				more = ! queue.isEmpty();
+				if (! more)
+					scheduled = false;
+			}
+			if (more)
+				schedule();
+		}
+
+		void deliver(int count) {
+			if (killed) {
+				for (int i = 0; i < count; ++i)
+					run[i].drop();
+				return;
+			}
+			if (target instanceof BatchNetworkerListener) {
+				for (int i = 0; i < count; ++i) {
+					senders[i] = run[i].sender;
+					data[i] = run[i].lease.data();
+				}
+				try {
+					((BatchNetworkerListener)target).receiveBatch(senders, data, count);
+				} catch (RuntimeException ex) {
+					// Not our problem, and it mustn't stop the lane.
+				}
+				for (int i = 0; i < count; ++i)
+					run[i].lease.release();
+				delivered.addAndGet(count);
+			} else if (target instanceof LeaseNetworkerListener) {
+				for (int i = 0; i < count; ++i) {
+					try {
+						// The listener owns the lease now.
+						((LeaseNetworkerListener)target).receive(run[i].sender, run[i].lease);
+					} catch (RuntimeException ex) {
+					}
+					delivered.incrementAndGet();
+				}
+			} else {
+				for (int i = 0; i < count; ++i) {
+					try {
+						target.receive(run[i].sender, run[i].bytes);
+					} catch (RuntimeException ex) {
+					}
+					delivered.incrementAndGet();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package org.sneer.networker.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, log-linear histogram of non-negative long values (e.g.
+ *   latencies in nanoseconds).
+ *
+ * Values below 16 get a bucket each; above that every power of two is split
+ *   in 8 buckets, so any recorded value is known to within 12.5%. That's 496
+ *   buckets covering the whole positive long range, and record() is just an
+ *   index computation plus an atomic increment: no allocation, no locking.
+ *
+ * Several histograms (e.g. one per thread) can be added together with
+ *   addTo() and the sum queried with the static percentile() helpers.
+ */
+public class Histogram {
+
+	static final int LINEAR = 16;
+	static final int SUB_BITS = 3;
+	static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	/**
+	 * Number of buckets of every histogram.
+	 */
+	public static final int BUCKETS = LINEAR + (63 - 4 + 1) * SUB_BUCKETS;
+
+	final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * Count one occurrence of a value. Negative values count as zero.
+	 * @param value The value.
+	 */
+	public void record(long value) {
+		counts.incrementAndGet(bucketOf(value));
+	}
+
+	/**
+	 * Add this histogram's counts to an array of BUCKETS totals.
+	 * @param totals Where to add to.
+	 */
+	public void addTo(long[] totals) {
+		for (int i = 0; i < BUCKETS; ++i)
+			totals[i] += counts.get(i);
+	}
+
+	/**
+	 * @return A copy of this histogram's counts.
+	 */
+	public long[] getCounts() {
+		long[] totals = new long[BUCKETS];
+		addTo(totals);
+		return totals;
+	}
+
+	/**
+	 * Forget everything recorded so far.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; ++i)
+			counts.set(i, 0);
+	}
+
+	/**
+	 * @param value A value.
+	 * @return The bucket it is counted in.
+	 */
+	public static int bucketOf(long value) {
+		if (value < LINEAR)
+			return value < 0 ? 0 : (int)value;
+		int exp = 63 - Long.numberOfLeadingZeros(value); // >= 4
+		int sub = (int)(value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR + (exp - 4) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @param bucket A bucket.
+	 * @return The largest value that is counted in it.
+	 */
+	public static long bucketUpperBound(int bucket) {
+		if (bucket < LINEAR)
+			return bucket;
+		int exp = (bucket - LINEAR) / SUB_BUCKETS + 4;
+		long sub = (bucket - LINEAR) % SUB_BUCKETS;
+		long low = (1L << exp) | (sub << (exp - SUB_BITS));
+		long high = low + (1L << (exp - SUB_BITS)) - 1;
+		return high < 0 ? Long.MAX_VALUE : high; // the top buckets overflow
+	}
+
+	/**
+	 * @param counts Bucket counts (e.g. from getCounts() or addTo()).
+	 * @return The total number of values counted.
+	 */
+	public static long total(long[] counts) {
+		long total = 0;
+		for (long c : counts)
+			total += c;
+		return total;
+	}
+
+	/**
+	 * Find a percentile.
+	 * @param counts Bucket counts (e.g. from getCounts() or addTo()).
+	 * @param percentile The percentile, from 0 to 100 (e.g. 99.9).
+	 * @return The upper bound of the bucket where the percentile falls, or 0
+	 *   if nothing was counted.
+	 */
+	public static long percentile(long[] counts, double percentile) {
+		long total = total(counts);
+		if (total == 0)
+			return 0;
+		long rank = (long)Math.ceil(total * percentile / 100.0);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i = 0; i < counts.length; ++i) {
+			seen += counts[i];
+			if (seen >= rank)
+				return bucketUpperBound(i);
+		}
+		return bucketUpperBound(counts.length - 1);
+	}
+}
@@ -0,0 +1,322 @@
+package org.sneer.networker.util;
+
+import java.util.Arrays;
+
+/**
+ * A hierarchical timing wheel: a scheduler for lots of timers that get
+ *   scheduled, pushed back and cancelled much more often than they fire
+ *   (leases, keepalives, retransmissions...).
+ *
+ * Timers are plain ints in [0, capacity) chosen by the user (e.g. a slot
+ *   index in a table), so scheduling doesn't allocate anything: every timer
+ *   is a node of an intrusive doubly-linked list kept in primitive arrays.
+ *   schedule() and cancel() are O(1).
+ *
+ * Time is split in ticks of tickMillis. There are LEVELS wheels of
+ *   WHEEL_SIZE buckets each; level 0 holds the timers due within the next
+ *   WHEEL_SIZE ticks, level 1 those due within WHEEL_SIZE^2 ticks, and so on.
+ *   As time advances, the buckets of the higher levels are cascaded down to
+ *   the lower ones. Timers further away than the top level can reach are
+ *   parked in the top level and cascaded again until they're in range.
+ *
+ * A timer never fires before its deadline, and fires at most one tick after
+ *   it (if advance() is called on time). nextExpiry() tells when the next
+ *   timer will fire, so a thread can sleep exactly until then instead of
+ *   polling.
+ *
+ * NOTE: This is NOT thread-safe. Use it from one thread, or under a lock.
+ */
+public class TimingWheel {
+
+	/**
+	 * Gets called back for every timer that expires during advance().
+	 */
+	public interface Handler {
+
+		/**
+		 * A timer expired. It is no longer scheduled when this is called, so
+		 *   it's fine to schedule() it again from here (or to schedule or
+		 *   cancel any other timer).
+		 * @param timer The timer that expired.
+		 */
+		public void expired(int timer);
+	}
+
+	static final int WHEEL_BITS = 6;
+	static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+	static final int WHEEL_MASK = WHEEL_SIZE - 1;
+	static final int LEVELS = 4;
+
+	// The farthest (in ticks) we can place a timer without parking it.
+	static final long MAX_SPAN = (1L << (WHEEL_BITS * LEVELS)) - 1;
+
+	// List terminator / "not scheduled" marker.
+	static final int NIL = -1;
+
+	// The bucket used to hold the timers being fired by advance(), and the
+	//   ones scheduled in the past in between advance() calls.
+	static final int FIRING = LEVELS * WHEEL_SIZE;
+
+	final long tickMillis;
+
+	// The next tick advance() will process. Everything before it is done.
+	long currentTick;
+
+	// Bucket list heads; the last one is the FIRING list.
+	final int[] heads = new int[LEVELS * WHEEL_SIZE + 1];
+
+	// Per-timer state.
+	int[] next;
+	int[] prev;
+	int[] bucket;
+	long[] deadlines;
+
+	int size;
+
+	// Whether we're inside advance().
+	boolean advancing;
+
+	/**
+	 * Create a timing wheel.
+	 * @param capacity How many timers (timer ids go from 0 to capacity-1).
+	 *   Can be raised later with ensureCapacity().
+	 * @param tickMillis The resolution of the wheel, in milliseconds.
+	 * @param now The current time in milliseconds.
+	 */
+	public TimingWheel(int capacity, long tickMillis, long now) {
+		this.tickMillis = tickMillis;
+		this.currentTick = now / tickMillis;
+		Arrays.fill(heads, NIL);
+		next = new int[0];
+		prev = new int[0];
+		bucket = new int[0];
+		deadlines = new long[0];
+		ensureCapacity(capacity);
+	}
+
+	/**
+	 * Make room for more timers.
+	 * @param capacity The new minimum number of timers.
+	 */
+	public void ensureCapacity(int capacity) {
+		int old = bucket.length;
+		if (capacity <= old)
+			return;
+		next = Arrays.copyOf(next, capacity);
+		prev = Arrays.copyOf(prev, capacity);
+		bucket = Arrays.copyOf(bucket, capacity);
+		deadlines = Arrays.copyOf(deadlines, capacity);
+		Arrays.fill(bucket, old, capacity, NIL);
+	}
+
+	/**
+	 * @return How many timer ids this wheel can take.
+	 */
+	public int capacity() {
+		return bucket.length;
+	}
+
+	/**
+	 * @return How many timers are currently scheduled.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Schedule a timer, or move it if it is already scheduled.
+	 * @param timer The timer.
+	 * @param deadline When it should fire (System.currentTimeMillis() time).
+	 *   A deadline in the past fires on the next advance().
+	 */
+	public void schedule(int timer, long deadline) {
+		if (bucket[timer] != NIL)
+			unlink(timer);
+		else
+			++size;
+		deadlines[timer] = deadline;
+		place(timer);
+	}
+
+	/**
+	 * Cancel a timer. Does nothing if it isn't scheduled.
+	 * @param timer The timer.
+	 */
+	public void cancel(int timer) {
+		if (bucket[timer] != NIL) {
+			unlink(timer);
+			--size;
+		}
+	}
+
+	/**
+	 * @param timer The timer.
+	 * @return true if it is scheduled (hasn't fired and wasn't cancelled).
+	 */
+	public boolean isScheduled(int timer) {
+		return bucket[timer] != NIL;
+	}
+
+	/**
+	 * @param timer The timer.
+	 * @return The deadline it was last scheduled with.
+	 */
+	public long getDeadline(int timer) {
+		return deadlines[timer];
+	}
+
+	/**
+	 * Fire every timer whose deadline is up to now.
+	 * @param now The current time in milliseconds.
+	 * @param handler Who to call for every timer that fires.
+	 * @return How many timers fired.
+	 */
+	public int advance(long now, Handler handler) {
+		long target = now / tickMillis;
+		int fired = 0;
+		advancing = true;
+		
+		// Whatever got scheduled in the past since the last call goes first.
+		fired += fire(handler);
+		
+		while (currentTick <= target) {
+			if (size == 0) {
+				// Nothing anywhere, so just jump.
+				currentTick = target + 1;
+				break;
+			}
+			long t = currentTick;
+			cascade(t);
+			currentTick = t + 1;
+
+			// Move the due bucket to the firing list so that whatever the
+			//   handler schedules goes to where it should.
+			int idx = (int)(t & WHEEL_MASK);
+			int timer = heads[idx];
+			heads[idx] = NIL;
+			heads[FIRING] = timer;
+			for (; timer != NIL; timer = next[timer])
+				bucket[timer] = FIRING;
+			fired += fire(handler);
+		}
+		advancing = false;
+		return fired;
+	}
+	
+	// Fire everything on the FIRING list.
+	int fire(Handler handler) {
+		int fired = 0;
+		int timer;
+		while ((timer = heads[FIRING]) != NIL) {
+			unlink(timer);
+			--size;
+			++fired;
+			handler.expired(timer);
+		}
+		return fired;
+	}
+
+	/**
+	 * Find out when advance() should be called next.
+	 * @return The time (in milliseconds) at which the next timer will fire,
+	 *   or Long.MAX_VALUE if there are no timers scheduled.
+	 */
+	public long nextExpiry() {
+		if (size == 0)
+			return Long.MAX_VALUE;
+		long min = Long.MAX_VALUE;
+		// Overdue ones.
+		for (int timer = heads[FIRING]; timer != NIL; timer = next[timer])
+			min = Math.min(min, fireTick(timer));
+		// Walk every level in wheel order; a bucket can't hold anything that
+		//   fires before the block it stands for starts, so we stop at the
+		//   first bucket that starts after the best we've found. Level 0 
+		//   starts at the current tick; the higher levels start right after
+		//   the current block, since the bucket of the current block is a 
+		//   full turn away (unless the current tick starts that block, in 
+		//   which case it is yet to be cascaded).
+		for (int level = 0; level < LEVELS; ++level) {
+			int shift = level * WHEEL_BITS;
+			long block = currentTick >>> shift;
+			int first = (currentTick & ((1L << shift) - 1)) == 0 ? 0 : 1;
+			for (int i = first; i < first + WHEEL_SIZE; ++i) {
+				if ((block + i) << shift >= min)
+					break;
+				int head = heads[level * WHEEL_SIZE + (int)((block + i) & WHEEL_MASK)];
+				for (int timer = head; timer != NIL; timer = next[timer])
+					min = Math.min(min, fireTick(timer));
+			}
+		}
+		return min * tickMillis;
+	}
+
+	// The tick at which a timer fires: its deadline rounded up, so we're
+	//   never early.
+	long fireTick(int timer) {
+		return (deadlines[timer] + tickMillis - 1) / tickMillis;
+	}
+
+	// Put a timer in the bucket it belongs to, given currentTick.
+	void place(int timer) {
+		long tick = fireTick(timer);
+		if (tick < currentTick) {
+			// Overdue. Outside advance() we keep it for the next call; from 
+			//   within a handler it goes to the next tick, so that a handler
+			//   that keeps rescheduling into the past can't loop forever.
+			if (! advancing) {
+				link(timer, FIRING);
+				return;
+			}
+			tick = currentTick;
+		}
+		long delta = tick - currentTick;
+		if (delta > MAX_SPAN) {
+			// Park it as far as we can; it will be cascaded and re-placed.
+			delta = MAX_SPAN;
+			tick = currentTick + MAX_SPAN;
+		}
+		int level = 0;
+		while (delta >= (1L << (WHEEL_BITS * (level + 1))))
+			++level;
+		int b = level * WHEEL_SIZE + (int)((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+		link(timer, b);
+	}
+
+	// When tick t starts a new block of a level, that level's bucket for the
+	//   block gets pushed down to the levels below.
+	void cascade(long t) {
+		for (int level = 1; level < LEVELS && (t & WHEEL_MASK) == 0; ++level) {
+			t >>>= WHEEL_BITS;
+			int b = level * WHEEL_SIZE + (int)(t & WHEEL_MASK);
+			int timer = heads[b];
+			heads[b] = NIL;
+			while (timer != NIL) {
+				int n = next[timer];
+				place(timer);
+				timer = n;
+			}
+		}
+	}
+
+	void link(int timer, int b) {
+		int head = heads[b];
+		next[timer] = head;
+		prev[timer] = NIL;
+		if (head != NIL)
+			prev[head] = timer;
+		heads[b] = timer;
+		bucket[timer] = b;
+	}
+
+	void unlink(int timer) {
+		int n = next[timer];
+		int p = prev[timer];
+		if (p != NIL)
+			next[p] = n;
+		else
+			heads[bucket[timer]] = n;
+		if (n != NIL)
+			prev[n] = p;
+		bucket[timer] = NIL;
+	}
+}